@@ -21,4 +21,18 @@ public interface JsonDefTarget extends ServiceDefTarget {
   public XsrfManager getXsrfManager();
 
   public void setXsrfManager(XsrfManager m);
+
+  /** @return length a request body must reach before it is compressed; 0 if never compressed. */
+  public int getRequestCompressionThreshold();
+
+  /**
+   * Compress POST request bodies of at least the given length.
+   *
+   * <p>Bodies are gzip compressed with the browser's <code>CompressionStream</code>, and sent
+   * uncompressed by browsers lacking it. Only enable this for services whose server accepts a
+   * request with <code>Content-Encoding: gzip</code>.
+   *
+   * @param length minimum length of a body to compress, in characters; 0 to disable compression.
+   */
+  public void setRequestCompressionThreshold(int length);
 }
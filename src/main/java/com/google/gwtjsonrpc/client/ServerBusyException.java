@@ -0,0 +1,30 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.client;
+
+import com.google.gwtjsonrpc.common.JsonConstants;
+
+/**
+ * Indicates the remote JSON server refused a call because it is overloaded.
+ *
+ * <p>The call was not run, so it is safe to retry after a short delay. Applications that already
+ * handle {@link ServerUnavailableException} by retrying need not distinguish this case.
+ */
+@SuppressWarnings("serial")
+public class ServerBusyException extends ServerUnavailableException {
+  public ServerBusyException() {
+    super(JsonConstants.ERROR_SERVER_BUSY);
+  }
+}
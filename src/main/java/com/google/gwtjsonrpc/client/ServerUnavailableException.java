@@ -28,4 +28,8 @@ public class ServerUnavailableException extends Exception {
   public ServerUnavailableException() {
     super(MESSAGE);
   }
+
+  protected ServerUnavailableException(final String message) {
+    super(message);
+  }
 }
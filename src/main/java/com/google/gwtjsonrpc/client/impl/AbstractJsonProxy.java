@@ -33,6 +33,7 @@ public abstract class AbstractJsonProxy implements JsonDefTarget {
   String url;
 
   private XsrfManager xsrfManager = JsonUtil.getDefaultXsrfManager();
+  private int compressionThreshold;
 
   @Override
   public String getServiceEntryPoint() {
@@ -60,6 +61,17 @@ public abstract class AbstractJsonProxy implements JsonDefTarget {
     xsrfManager = m;
   }
 
+  @Override
+  public int getRequestCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  @Override
+  public void setRequestCompressionThreshold(final int length) {
+    assert length >= 0;
+    compressionThreshold = length;
+  }
+
   @Override
   public void setRpcRequestBuilder(RpcRequestBuilder builder) {
     if (builder != null)
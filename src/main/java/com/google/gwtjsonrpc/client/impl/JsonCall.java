@@ -90,9 +90,9 @@ public abstract class JsonCall<T> implements RequestCallback {
   protected void send(RequestBuilder rb) {
     try {
       attempts++;
-      rb.send();
+      RequestCompressor.send(rb, proxy.getRequestCompressionThreshold());
     } catch (RequestException e) {
-      callback.onFailure(e);
+      onSendFailed(e);
       return;
     }
 
@@ -101,9 +101,21 @@ public abstract class JsonCall<T> implements RequestCallback {
     }
   }
 
+  /** Report that the request for this call could not be sent. */
+  protected void onSendFailed(final RequestException e) {
+    XsrfRefresh.completed(this);
+    callback.onFailure(e);
+  }
+
+  /** Report that this call has completed, just before its callback is invoked. */
+  protected final void complete() {
+    RpcCompleteEvent.fire(this);
+    XsrfRefresh.completed(this);
+  }
+
   @Override
   public void onError(final Request request, final Throwable exception) {
-    RpcCompleteEvent.fire(this);
+    complete();
     if (exception.getClass() == RuntimeException.class
         && exception.getMessage().contains("XmlHttpRequest.status")) {
       // GWT's XMLHTTPRequest class gives us RuntimeException when the
@@ -0,0 +1,185 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.client.impl;
+
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.http.client.Header;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
+import com.google.gwt.xhr.client.ReadyStateChangeHandler;
+import com.google.gwt.xhr.client.XMLHttpRequest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends POST requests with a gzip compressed body.
+ *
+ * <p>Compression uses the browser's <code>CompressionStream</code>, which completes asynchronously,
+ * so the compressed request is sent from a later event loop turn. The request's callback is invoked
+ * just as if the request had been sent by its {@link RequestBuilder}.
+ */
+public final class RequestCompressor {
+  private static final String[] HEADERS = {"Content-Type", "Accept"};
+
+  /**
+   * Send a request, compressing its body if it is long enough.
+   *
+   * @param rb the request to send. Only its URL, callback, body and the <code>Content-Type</code>
+   *     and <code>Accept</code> headers are used when it is compressed.
+   * @param threshold minimum length of a body to compress; 0 to never compress.
+   * @throws RequestException the request could not be sent.
+   */
+  public static void send(final RequestBuilder rb, final int threshold) throws RequestException {
+    final String body = rb.getRequestData();
+    if (threshold <= 0 || body == null || body.length() < threshold || !isSupported()) {
+      rb.send();
+      return;
+    }
+    compress(body, new RequestCompressor(rb));
+  }
+
+  private static native boolean isSupported() /*-{
+    return !!($wnd.CompressionStream && $wnd.Response && $wnd.Blob
+        && $wnd.Blob.prototype.stream);
+  }-*/;
+
+  private static native void compress(String body, RequestCompressor c) /*-{
+    var gz = new $wnd.Blob([body]).stream().pipeThrough(new $wnd.CompressionStream('gzip'));
+    new $wnd.Response(gz).arrayBuffer().then(
+        $entry(function(buf) {
+          c.@com.google.gwtjsonrpc.client.impl.RequestCompressor::onCompressed(Lcom/google/gwt/core/client/JavaScriptObject;)(buf);
+        }),
+        $entry(function(err) {
+          c.@com.google.gwtjsonrpc.client.impl.RequestCompressor::onCompressFailed()();
+        }));
+  }-*/;
+
+  private static native void sendBody(XMLHttpRequest xhr, JavaScriptObject body) /*-{
+    xhr.send(body);
+  }-*/;
+
+  private final RequestBuilder rb;
+
+  private RequestCompressor(final RequestBuilder rb) {
+    this.rb = rb;
+  }
+
+  private void onCompressed(final JavaScriptObject gz) {
+    final RequestCallback callback = rb.getCallback();
+    final XMLHttpRequest xhr = XMLHttpRequest.create();
+    final Request req = new Request() {};
+    try {
+      xhr.open(rb.getHTTPMethod(), rb.getUrl());
+      for (final String name : HEADERS) {
+        final String value = rb.getHeader(name);
+        if (value != null) {
+          xhr.setRequestHeader(name, value);
+        }
+      }
+      xhr.setRequestHeader("Content-Encoding", "gzip");
+      xhr.setOnReadyStateChange(
+          new ReadyStateChangeHandler() {
+            @Override
+            public void onReadyStateChange(final XMLHttpRequest x) {
+              if (x.getReadyState() == XMLHttpRequest.DONE) {
+                x.clearOnReadyStateChange();
+                if (x.getStatus() == 0) {
+                  // Same condition GWT reports when the connection failed.
+                  //
+                  callback.onError(
+                      req, new RuntimeException("Unable to read XmlHttpRequest.status"));
+                } else {
+                  callback.onResponseReceived(req, new XhrResponse(x));
+                }
+              }
+            }
+          });
+      sendBody(xhr, gz);
+    } catch (RuntimeException e) {
+      xhr.clearOnReadyStateChange();
+      callback.onError(req, new RequestException(e.getMessage()));
+    }
+  }
+
+  private void onCompressFailed() {
+    try {
+      rb.send();
+    } catch (RequestException e) {
+      rb.getCallback().onError(new Request() {}, e);
+    }
+  }
+
+  /** Response read from a completed request. */
+  private static final class XhrResponse extends Response {
+    private final XMLHttpRequest xhr;
+
+    XhrResponse(final XMLHttpRequest xhr) {
+      this.xhr = xhr;
+    }
+
+    @Override
+    public String getHeader(final String header) {
+      return xhr.getResponseHeader(header);
+    }
+
+    @Override
+    public Header[] getHeaders() {
+      final List<Header> r = new ArrayList<>();
+      for (final String line : getHeadersAsString().split("\r\n")) {
+        final int colon = line.indexOf(':');
+        if (colon > 0) {
+          final String name = line.substring(0, colon).trim();
+          final String value = line.substring(colon + 1).trim();
+          r.add(
+              new Header() {
+                @Override
+                public String getName() {
+                  return name;
+                }
+
+                @Override
+                public String getValue() {
+                  return value;
+                }
+              });
+        }
+      }
+      return r.toArray(new Header[r.size()]);
+    }
+
+    @Override
+    public String getHeadersAsString() {
+      return xhr.getAllResponseHeaders();
+    }
+
+    @Override
+    public int getStatusCode() {
+      return xhr.getStatus();
+    }
+
+    @Override
+    public String getStatusText() {
+      return xhr.getStatusText();
+    }
+
+    @Override
+    public String getText() {
+      return xhr.getResponseText();
+    }
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.client.impl;
+
+import com.google.gwtjsonrpc.client.XsrfManager;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coordinates the calls sharing an {@link XsrfManager} while their XSRF token is refreshed.
+ *
+ * <p>When the server rejects a call's token, the call is sent again once it has a new token. Any
+ * other call sent with the same token would be rejected too, so rather than letting each of them
+ * make its own round trip, the first rejected call is retried alone. Calls made, or rejected, while
+ * it is outstanding wait for it to complete, and are then sent with the refreshed token.
+ */
+public final class XsrfRefresh {
+  private static final Map<XsrfManager, XsrfRefresh> refreshes = new HashMap<>();
+
+  /**
+   * Hold a call if a token refresh is in progress.
+   *
+   * @param call the call about to be sent.
+   * @return true if the call has been queued, and will be sent again once the refresh completes;
+   *     false if the call should be sent now.
+   */
+  public static boolean hold(final JsonCall<?> call) {
+    final XsrfRefresh r = refreshes.get(call.getProxy().getXsrfManager());
+    if (r == null || r.leader == call) {
+      return false;
+    }
+    r.waiting.add(call);
+    return true;
+  }
+
+  /**
+   * Record that a call's token was rejected, and the call will be sent again.
+   *
+   * <p>If no refresh is in progress the call leads a new one, and calls sent until it completes are
+   * held.
+   */
+  public static void rejected(final JsonCall<?> call) {
+    final XsrfManager m = call.getProxy().getXsrfManager();
+    if (!refreshes.containsKey(m)) {
+      refreshes.put(m, new XsrfRefresh(call));
+    }
+  }
+
+  /** Record that a call completed; if it led a refresh, send the calls that were held. */
+  static void completed(final JsonCall<?> call) {
+    final XsrfManager m = call.getProxy().getXsrfManager();
+    final XsrfRefresh r = refreshes.get(m);
+    if (r != null && r.leader == call) {
+      refreshes.remove(m);
+      for (final JsonCall<?> c : r.waiting) {
+        c.send();
+      }
+    }
+  }
+
+  private final JsonCall<?> leader;
+  private final List<JsonCall<?>> waiting = new ArrayList<>();
+
+  private XsrfRefresh(final JsonCall<?> leader) {
+    this.leader = leader;
+  }
+}
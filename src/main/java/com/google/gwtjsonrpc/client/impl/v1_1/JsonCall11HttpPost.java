@@ -24,10 +24,11 @@ import com.google.gwt.user.client.rpc.InvocationException;
 import com.google.gwt.user.client.rpc.StatusCodeException;
 import com.google.gwtjsonrpc.client.JsonUtil;
 import com.google.gwtjsonrpc.client.RemoteJsonException;
-import com.google.gwtjsonrpc.client.event.RpcCompleteEvent;
+import com.google.gwtjsonrpc.client.ServerBusyException;
 import com.google.gwtjsonrpc.client.impl.AbstractJsonProxy;
 import com.google.gwtjsonrpc.client.impl.JsonCall;
 import com.google.gwtjsonrpc.client.impl.ResultDeserializer;
+import com.google.gwtjsonrpc.client.impl.XsrfRefresh;
 import com.google.gwtjsonrpc.common.AsyncCallback;
 import com.google.gwtjsonrpc.common.JsonConstants;
 
@@ -45,6 +46,10 @@ public class JsonCall11HttpPost<T> extends JsonCall<T> {
 
   @Override
   protected void send() {
+    if (XsrfRefresh.hold(this)) {
+      return;
+    }
+
     final StringBuilder body = new StringBuilder();
     body.append("{\"version\":\"1.1\",\"method\":\"");
     body.append(methodName);
@@ -75,7 +80,7 @@ public class JsonCall11HttpPost<T> extends JsonCall<T> {
       try {
         r = parse(jsonParser, rsp.getText());
       } catch (RuntimeException e) {
-        RpcCompleteEvent.fire(this);
+        complete();
         callback.onFailure(new InvocationException("Bad JSON response: " + e));
         return;
       }
@@ -92,13 +97,17 @@ public class JsonCall11HttpPost<T> extends JsonCall<T> {
             // service demands we have one in place to make calls to it.
             // A new token was returned to us, so start the request over.
             //
+            XsrfRefresh.rejected(this);
             send();
           } else {
-            RpcCompleteEvent.fire(this);
+            complete();
             callback.onFailure(new InvocationException(errmsg));
           }
+        } else if (JsonConstants.ERROR_SERVER_BUSY.equals(errmsg)) {
+          complete();
+          callback.onFailure(new ServerBusyException());
         } else {
-          RpcCompleteEvent.fire(this);
+          complete();
           callback.onFailure(
               new RemoteJsonException(
                   errmsg, r.error().code(), new JSONObject(r.error()).get("error")));
@@ -107,17 +116,17 @@ public class JsonCall11HttpPost<T> extends JsonCall<T> {
       }
 
       if (sc == Response.SC_OK) {
-        RpcCompleteEvent.fire(this);
+        complete();
         JsonUtil.invoke(resultDeserializer, callback, r);
         return;
       }
     }
 
     if (sc == Response.SC_OK) {
-      RpcCompleteEvent.fire(this);
+      complete();
       callback.onFailure(new InvocationException("No JSON response"));
     } else {
-      RpcCompleteEvent.fire(this);
+      complete();
       callback.onFailure(new StatusCodeException(sc, rsp.getStatusText()));
     }
   }
@@ -0,0 +1,111 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.client.impl.v2_0;
+
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
+import com.google.gwtjsonrpc.client.impl.RequestCompressor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calls to one service entry point that are waiting to be sent as a single batch request.
+ *
+ * <p>Calls are batched only with calls of proxies having the same request compression threshold, so
+ * each batch is compressed as every one of its calls asked.
+ */
+final class CallBatch implements ScheduledCommand, RequestCallback {
+  private static final Map<String, CallBatch> pending = new HashMap<>();
+
+  /**
+   * Queue a call to be sent at the end of the current browser event loop turn.
+   *
+   * @param call the call, with its request id already assigned.
+   */
+  static void add(final JsonCall20HttpBatch<?> call) {
+    final String url = call.getProxy().getServiceEntryPoint();
+    final int threshold = call.getProxy().getRequestCompressionThreshold();
+    final String key = threshold + " " + url;
+    CallBatch b = pending.get(key);
+    if (b == null) {
+      b = new CallBatch(key, url, threshold);
+      pending.put(key, b);
+      Scheduler.get().scheduleFinally(b);
+    }
+    b.calls.add(call);
+  }
+
+  private final String key;
+  private final String url;
+  private final int compressionThreshold;
+  private final List<JsonCall20HttpBatch<?>> calls = new ArrayList<>();
+
+  private CallBatch(final String key, final String url, final int compressionThreshold) {
+    this.key = key;
+    this.url = url;
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  @Override
+  public void execute() {
+    pending.remove(key);
+    if (calls.size() == 1) {
+      calls.get(0).sendAlone();
+      return;
+    }
+
+    final StringBuilder body = new StringBuilder();
+    body.append('[');
+    for (int i = 0; i < calls.size(); i++) {
+      if (i > 0) {
+        body.append(',');
+      }
+      calls.get(i).appendRequest(body);
+    }
+    body.append(']');
+
+    final RequestBuilder rb = JsonCall20HttpPost.newRequest(url, body.toString(), this);
+    try {
+      RequestCompressor.send(rb, compressionThreshold);
+    } catch (RequestException e) {
+      for (final JsonCall20HttpBatch<?> c : calls) {
+        c.onSendFailed(e);
+      }
+      return;
+    }
+    for (final JsonCall20HttpBatch<?> c : calls) {
+      c.onSent();
+    }
+  }
+
+  @Override
+  public void onResponseReceived(final Request req, final Response rsp) {
+    JsonCall20.onBatchResponse(calls, req, rsp);
+  }
+
+  @Override
+  public void onError(final Request req, final Throwable exception) {
+    for (final JsonCall20HttpBatch<?> c : calls) {
+      c.onError(req, exception);
+    }
+  }
+}
@@ -15,6 +15,7 @@
 package com.google.gwtjsonrpc.client.impl.v2_0;
 
 import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArray;
 import com.google.gwt.http.client.Request;
 import com.google.gwt.http.client.Response;
 import com.google.gwt.json.client.JSONObject;
@@ -22,12 +23,14 @@ import com.google.gwt.user.client.rpc.InvocationException;
 import com.google.gwt.user.client.rpc.StatusCodeException;
 import com.google.gwtjsonrpc.client.JsonUtil;
 import com.google.gwtjsonrpc.client.RemoteJsonException;
-import com.google.gwtjsonrpc.client.event.RpcCompleteEvent;
+import com.google.gwtjsonrpc.client.ServerBusyException;
 import com.google.gwtjsonrpc.client.impl.AbstractJsonProxy;
 import com.google.gwtjsonrpc.client.impl.JsonCall;
 import com.google.gwtjsonrpc.client.impl.ResultDeserializer;
+import com.google.gwtjsonrpc.client.impl.XsrfRefresh;
 import com.google.gwtjsonrpc.common.AsyncCallback;
 import com.google.gwtjsonrpc.common.JsonConstants;
+import java.util.List;
 
 /** Base JsonCall implementation for JsonRPC version 2.0 */
 abstract class JsonCall20<T> extends JsonCall<T> {
@@ -52,51 +55,112 @@ abstract class JsonCall20<T> extends JsonCall<T> {
       try {
         r = parse(jsonParser, rsp.getText());
       } catch (RuntimeException e) {
-        RpcCompleteEvent.fire(this);
+        complete();
         callback.onFailure(new InvocationException("Bad JSON response: " + e));
         return;
       }
+      if (onResult(r, sc)) {
+        return;
+      }
+    }
+    onStatus(sc, rsp.getStatusText());
+  }
 
-      if (r.xsrfKey() != null) {
-        proxy.getXsrfManager().setToken(proxy, r.xsrfKey());
+  /**
+   * Dispatch the response to a batch request to each of its calls.
+   *
+   * <p>If the server answered with an array each call receives the entry carrying its request id.
+   * Any other response, such as a single error for the batch as a whole, is handled by every call
+   * as if it had been sent alone.
+   */
+  static void onBatchResponse(
+      final List<? extends JsonCall20<?>> calls, final Request req, final Response rsp) {
+    if (isJsonBody(rsp)) {
+      JsArray<RpcResult> results;
+      try {
+        results = parseArray(jsonParser, rsp.getText());
+      } catch (RuntimeException e) {
+        results = null;
       }
 
-      if (r.error() != null) {
-        // TODO: define status code for the invalid XSRF msg for 2.0 (-32099 ?)
-        final String errmsg = r.error().message();
-        if (JsonConstants.ERROR_INVALID_XSRF.equals(errmsg)) {
-          if (attempts < 2) {
-            // The XSRF cookie was invalidated (or didn't exist) and the
-            // service demands we have one in place to make calls to it.
-            // A new token was returned to us, so start the request over.
-            //
-            send();
-          } else {
-            RpcCompleteEvent.fire(this);
-            callback.onFailure(new InvocationException(errmsg));
+      if (results != null) {
+        final int sc = rsp.getStatusCode();
+        for (final JsonCall20<?> c : calls) {
+          final RpcResult r = find(results, c.requestId);
+          if (r == null) {
+            c.complete();
+            c.callback.onFailure(new InvocationException("No JSON response"));
+          } else if (!c.onResult(r, sc)) {
+            c.onStatus(sc, rsp.getStatusText());
           }
-        } else {
-          RpcCompleteEvent.fire(this);
-          callback.onFailure(
-              new RemoteJsonException(
-                  errmsg, r.error().code(), new JSONObject(r.error()).get("data")));
         }
         return;
       }
+    }
 
-      if (sc == Response.SC_OK) {
-        RpcCompleteEvent.fire(this);
-        JsonUtil.invoke(resultDeserializer, callback, r);
-        return;
+    for (final JsonCall20<?> c : calls) {
+      c.onResponseReceived(req, rsp);
+    }
+  }
+
+  private static RpcResult find(final JsArray<RpcResult> results, final int id) {
+    for (int i = 0; i < results.length(); i++) {
+      final RpcResult r = results.get(i);
+      if (r != null && r.id() == id) {
+        return r;
       }
     }
+    return null;
+  }
+
+  /** @return true if the call was completed by this result. */
+  boolean onResult(final RpcResult r, final int sc) {
+    if (r.xsrfKey() != null) {
+      proxy.getXsrfManager().setToken(proxy, r.xsrfKey());
+    }
+
+    if (r.error() != null) {
+      // TODO: define status code for the invalid XSRF msg for 2.0 (-32099 ?)
+      final String errmsg = r.error().message();
+      if (JsonConstants.ERROR_INVALID_XSRF.equals(errmsg)) {
+        if (attempts < 2) {
+          // The XSRF cookie was invalidated (or didn't exist) and the
+          // service demands we have one in place to make calls to it.
+          // A new token was returned to us, so start the request over.
+          //
+          XsrfRefresh.rejected(this);
+          send();
+        } else {
+          complete();
+          callback.onFailure(new InvocationException(errmsg));
+        }
+      } else if (JsonConstants.ERROR_SERVER_BUSY.equals(errmsg)) {
+        complete();
+        callback.onFailure(new ServerBusyException());
+      } else {
+        complete();
+        callback.onFailure(
+            new RemoteJsonException(
+                errmsg, r.error().code(), new JSONObject(r.error()).get("data")));
+      }
+      return true;
+    }
 
     if (sc == Response.SC_OK) {
-      RpcCompleteEvent.fire(this);
+      complete();
+      JsonUtil.invoke(resultDeserializer, callback, r);
+      return true;
+    }
+    return false;
+  }
+
+  void onStatus(final int sc, final String statusText) {
+    if (sc == Response.SC_OK) {
+      complete();
       callback.onFailure(new InvocationException("No JSON response"));
     } else {
-      RpcCompleteEvent.fire(this);
-      callback.onFailure(new StatusCodeException(sc, rsp.getStatusText()));
+      complete();
+      callback.onFailure(new StatusCodeException(sc, statusText));
     }
   }
 
@@ -120,16 +184,37 @@ abstract class JsonCall20<T> extends JsonCall<T> {
    * @return the parsed data
    * @see #jsonParser
    */
-  private static final native RpcResult parse(JavaScriptObject parserFunction, String json) /*-{
+  static final native RpcResult parse(JavaScriptObject parserFunction, String json) /*-{
     return parserFunction(json);
   }-*/;
 
-  private static class RpcResult extends JavaScriptObject {
+  private static final native JsArray<RpcResult> parseArray(
+      JavaScriptObject parserFunction, String json) /*-{
+    var r = parserFunction(json);
+    return Object.prototype.toString.call(r) === '[object Array]' ? r : null;
+  }-*/;
+
+  static class RpcResult extends JavaScriptObject {
     protected RpcResult() {}
 
+    final native int id() /*-{ return typeof this.id == 'number' ? this.id : -1; }-*/;
+
     final native RpcError error() /*-{ return this.error; }-*/;
 
     final native String xsrfKey() /*-{ return this.xsrfKey; }-*/;
+
+    /** @return shallow copy of this result, without the XSRF token it carried. */
+    final native RpcResult withoutXsrfKey() /*-{
+      var r = {};
+      for (var k in this) {
+        if (k != 'xsrfKey' && Object.prototype.hasOwnProperty.call(this, k)) {
+          r[k] = this[k];
+        }
+      }
+      return r;
+    }-*/;
+
+    final native boolean isError() /*-{ return this.error != null; }-*/;
   }
 
   private static class RpcError extends JavaScriptObject {
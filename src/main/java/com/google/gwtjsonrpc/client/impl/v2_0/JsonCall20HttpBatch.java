@@ -0,0 +1,69 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.client.impl.v2_0;
+
+import com.google.gwt.http.client.RequestException;
+import com.google.gwtjsonrpc.client.event.RpcStartEvent;
+import com.google.gwtjsonrpc.client.impl.AbstractJsonProxy;
+import com.google.gwtjsonrpc.client.impl.ResultDeserializer;
+import com.google.gwtjsonrpc.client.impl.XsrfRefresh;
+import com.google.gwtjsonrpc.common.AsyncCallback;
+
+/**
+ * JsonCall implementation for JsonRPC version 2.0 over HTTP POST, coalescing calls into batches.
+ *
+ * <p>Calls made during the same browser event loop turn to the same service entry point are sent
+ * together as a single batch request, even if they were made through different proxies.
+ */
+public class JsonCall20HttpBatch<T> extends JsonCall20HttpPost<T> {
+  public JsonCall20HttpBatch(
+      AbstractJsonProxy abstractJsonProxy,
+      String methodName,
+      String requestParams,
+      ResultDeserializer<T> resultDeserializer,
+      AsyncCallback<T> callback) {
+    super(abstractJsonProxy, methodName, requestParams, resultDeserializer, callback);
+  }
+
+  @Override
+  protected void send() {
+    if (XsrfRefresh.hold(this)) {
+      return;
+    }
+
+    requestId = ++lastRequestId;
+    CallBatch.add(this);
+  }
+
+  /** Send this call by itself, as it was the only one made. */
+  void sendAlone() {
+    super.send();
+  }
+
+  /** Record that the batch containing this call has been sent. */
+  void onSent() {
+    attempts++;
+    if (attempts == 1) {
+      RpcStartEvent.fire(this);
+    }
+  }
+
+  /** Record that the batch containing this call could not be sent. */
+  @Override
+  protected void onSendFailed(final RequestException e) {
+    attempts++;
+    super.onSendFailed(e);
+  }
+}
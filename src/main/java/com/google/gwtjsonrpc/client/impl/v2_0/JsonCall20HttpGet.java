@@ -14,16 +14,32 @@
 
 package com.google.gwtjsonrpc.client.impl.v2_0;
 
+import com.google.gwt.http.client.Request;
 import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.Response;
 import com.google.gwt.http.client.URL;
 import com.google.gwtjsonrpc.client.impl.AbstractJsonProxy;
 import com.google.gwtjsonrpc.client.impl.ResultDeserializer;
 import com.google.gwtjsonrpc.common.AsyncCallback;
 import com.google.gwtjsonrpc.common.JsonConstants;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /** JsonCall implementation for JsonRPC version 2.0 over HTTP POST */
 public class JsonCall20HttpGet<T> extends JsonCall20<T> {
+  /** Most recent results carrying an entity tag, by request URL without the request id. */
+  private static final Map<String, TaggedResult> lastResults =
+      new LinkedHashMap<String, TaggedResult>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, TaggedResult> eldest) {
+          return size() > 64;
+        }
+      };
+
   private String encodedRequestParams;
+  private String resultKey;
 
   public JsonCall20HttpGet(
       AbstractJsonProxy abstractJsonProxy,
@@ -41,17 +57,74 @@ public class JsonCall20HttpGet<T> extends JsonCall20<T> {
     final StringBuilder url = new StringBuilder(proxy.getServiceEntryPoint());
     url.append("?jsonrpc=2.0&method=").append(methodName);
     url.append("&params=").append(encodedRequestParams);
+    resultKey = url.toString();
     url.append("&id=").append(requestId);
 
     final RequestBuilder rb;
     rb = new RequestBuilder(RequestBuilder.GET, url.toString());
     rb.setHeader("Content-Type", JsonConstants.JSONRPC20_REQ_CT);
     rb.setHeader("Accept", JsonConstants.JSONRPC20_ACCEPT_CTS);
+    final TaggedResult last = lastResults.get(resultKey);
+    if (last != null) {
+      rb.setHeader("If-None-Match", last.etag);
+    }
     rb.setCallback(this);
 
     send(rb);
   }
 
+  @Override
+  public void onResponseReceived(final Request req, final Response rsp) {
+    final int sc = rsp.getStatusCode();
+    if (sc == Response.SC_NOT_MODIFIED) {
+      // The result is unchanged since the last call with these
+      // parameters; reuse it without transferring or parsing it again.
+      //
+      final TaggedResult last = lastResults.get(resultKey);
+      if (last != null && onResult(last.result, Response.SC_OK)) {
+        return;
+      }
+    }
+
+    final String etag = rsp.getHeader("ETag");
+    if (sc == Response.SC_OK && etag != null && isJsonBody(rsp)) {
+      final RpcResult r;
+      try {
+        r = parse(jsonParser, rsp.getText());
+      } catch (RuntimeException e) {
+        lastResults.remove(resultKey);
+        super.onResponseReceived(req, rsp);
+        return;
+      }
+      if (r.isError()) {
+        lastResults.remove(resultKey);
+      } else {
+        // The token is installed from this response only. A result
+        // replayed after a 304 must not restore a token that may have
+        // been replaced since.
+        //
+        lastResults.put(resultKey, new TaggedResult(etag, r.withoutXsrfKey()));
+      }
+      if (!onResult(r, sc)) {
+        onStatus(sc, rsp.getStatusText());
+      }
+      return;
+    }
+
+    lastResults.remove(resultKey);
+    super.onResponseReceived(req, rsp);
+  }
+
+  private static class TaggedResult {
+    final String etag;
+    final RpcResult result;
+
+    TaggedResult(final String etag, final RpcResult result) {
+      this.etag = etag;
+      this.result = result;
+    }
+  }
+
   /**
    * Javascript base64 encoding implementation from.
    *
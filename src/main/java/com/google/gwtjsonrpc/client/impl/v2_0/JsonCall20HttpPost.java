@@ -16,8 +16,10 @@ package com.google.gwtjsonrpc.client.impl.v2_0;
 
 import com.google.gwt.core.client.JsonUtils;
 import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
 import com.google.gwtjsonrpc.client.impl.AbstractJsonProxy;
 import com.google.gwtjsonrpc.client.impl.ResultDeserializer;
+import com.google.gwtjsonrpc.client.impl.XsrfRefresh;
 import com.google.gwtjsonrpc.common.AsyncCallback;
 import com.google.gwtjsonrpc.common.JsonConstants;
 
@@ -34,8 +36,18 @@ public class JsonCall20HttpPost<T> extends JsonCall20<T> {
 
   @Override
   protected void send() {
+    if (XsrfRefresh.hold(this)) {
+      return;
+    }
+
     requestId = ++lastRequestId;
     final StringBuilder body = new StringBuilder();
+    appendRequest(body);
+    send(newRequest(proxy.getServiceEntryPoint(), body.toString(), this));
+  }
+
+  /** Append the JSON request object for this call, using the current {@link #requestId}. */
+  void appendRequest(final StringBuilder body) {
     body.append("{\"jsonrpc\":\"2.0\",\"method\":\"");
     body.append(methodName);
     body.append("\",\"params\":");
@@ -47,14 +59,16 @@ public class JsonCall20HttpPost<T> extends JsonCall20<T> {
       body.append(JsonUtils.escapeValue(xsrfKey));
     }
     body.append("}");
+  }
 
+  static RequestBuilder newRequest(
+      final String url, final String body, final RequestCallback callback) {
     final RequestBuilder rb;
-    rb = new RequestBuilder(RequestBuilder.POST, proxy.getServiceEntryPoint());
+    rb = new RequestBuilder(RequestBuilder.POST, url);
     rb.setHeader("Content-Type", JsonConstants.JSONRPC20_REQ_CT);
     rb.setHeader("Accept", JsonConstants.JSONRPC20_ACCEPT_CTS);
-    rb.setCallback(this);
-    rb.setRequestData(body.toString());
-
-    send(rb);
+    rb.setCallback(callback);
+    rb.setRequestData(body);
+    return rb;
   }
 }
@@ -0,0 +1,42 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.common;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation permitting browsers and HTTP caches to store the response of a method.
+ *
+ * <p>Only applies to successful calls made over HTTP GET to methods also tagged with {@link
+ * AllowCrossSiteRequest}. Every other response is marked as uncacheable.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface CachePolicy {
+  /** Number of seconds the response may be reused for. */
+  int maxAge();
+
+  /**
+   * Whether shared caches, such as proxies and CDNs, may store the response. By default only the
+   * user's browser may.
+   */
+  boolean shared() default false;
+
+  /** Request headers, in addition to <code>Accept-Encoding</code>, that the response depends on. */
+  String[] vary() default {};
+}
@@ -0,0 +1,41 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.common;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation permitting the server to reuse the result of a method for identical calls.
+ *
+ * <p>This annotation should only be placed on {@link RemoteJsonService} methods which are read-only
+ * (change no server state) and whose result depends only on their parameters and, unless {@link
+ * #shared()} is set, on the calling user. A repeated call may be answered from the server's cache,
+ * without invoking the method, until {@link #maxAge()} seconds after the result was computed.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cacheable {
+  /** Number of seconds a result may be reused for. */
+  int maxAge();
+
+  /**
+   * Whether one result may be returned to all users. By default results are cached separately for
+   * each user.
+   */
+  boolean shared() default false;
+}
@@ -0,0 +1,33 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.common;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation letting a client polling a method be told its result has not changed.
+ *
+ * <p>Successful JSON-RPC 2.0 calls made over HTTP GET to the method carry an entity tag computed
+ * from their result. A later call whose <code>If-None-Match</code> header holds the same tag is
+ * answered with 304 Not Modified, without sending the result again. The result is still computed
+ * for every call, and is formatted in full in order to compute its tag, so this only pays off for
+ * methods that are polled for results which seldom change.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface ConditionalGet {}
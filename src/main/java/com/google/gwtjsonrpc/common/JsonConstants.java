@@ -37,4 +37,7 @@ public class JsonConstants {
 
   /** Error message when xsrfKey in request is missing or invalid. */
   public static final String ERROR_INVALID_XSRF = "Invalid xsrfKey in request";
+
+  /** Error message when the server is too busy to run a call; it may be retried later. */
+  public static final String ERROR_SERVER_BUSY = "Server is busy";
 }
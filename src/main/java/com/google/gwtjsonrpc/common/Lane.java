@@ -0,0 +1,36 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.common;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation assigning a method to a named lane.
+ *
+ * <p>Methods in the same lane share a limit on how many of their calls may run at once, and a short
+ * queue of calls waiting to run. Once the queue is full further calls are refused with {@link
+ * JsonConstants#ERROR_SERVER_BUSY}, so an expensive method in its own lane cannot take over all of
+ * the server's threads from the service's other methods. Methods without a lane are limited only by
+ * the container.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Lane {
+  /** Name of the lane. */
+  String value();
+}
@@ -44,7 +44,12 @@ public @interface RpcImpl {
   /** Supported transport mechanisms. */
   public enum Transport {
     HTTP_POST,
-    HTTP_GET
+    HTTP_GET,
+    /**
+     * HTTP POST, coalescing all calls made to the same entry point during one browser event loop
+     * turn into a single batch request. Requires version 2.0.
+     */
+    HTTP_POST_BATCH
   }
 
   /** Specify the JSON-RPC version. Default is version 1.1. */
@@ -41,6 +41,7 @@ import com.google.gwtjsonrpc.client.impl.AbstractJsonProxy;
 import com.google.gwtjsonrpc.client.impl.JsonSerializer;
 import com.google.gwtjsonrpc.client.impl.ResultDeserializer;
 import com.google.gwtjsonrpc.client.impl.v1_1.JsonCall11HttpPost;
+import com.google.gwtjsonrpc.client.impl.v2_0.JsonCall20HttpBatch;
 import com.google.gwtjsonrpc.client.impl.v2_0.JsonCall20HttpGet;
 import com.google.gwtjsonrpc.client.impl.v2_0.JsonCall20HttpPost;
 import com.google.gwtjsonrpc.common.AsyncCallback;
@@ -273,13 +274,15 @@ class ProxyCreator {
       return JsonCall20HttpPost.class.getCanonicalName();
     } else if (impl.version() == Version.V2_0 && impl.transport() == Transport.HTTP_GET) {
       return JsonCall20HttpGet.class.getCanonicalName();
+    } else if (impl.version() == Version.V2_0 && impl.transport() == Transport.HTTP_POST_BATCH) {
+      return JsonCall20HttpBatch.class.getCanonicalName();
     }
 
     logger.log(
         Type.ERROR,
         "Unsupported JSON-RPC version and transport "
             + "combination: Supported are 1.1 over HTTP POST and "
-            + "2.0 over HTTP POST and GET");
+            + "2.0 over HTTP POST, GET and batched POST");
     throw new UnableToCompleteException();
   }
 
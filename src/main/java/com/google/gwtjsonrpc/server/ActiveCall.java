@@ -18,8 +18,16 @@ import com.google.gson.JsonElement;
 import com.google.gwtjsonrpc.common.AsyncCallback;
 import com.google.gwtjsonrpc.common.CheckTokenException;
 import com.google.gwtjsonrpc.common.JsonConstants;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -38,10 +46,24 @@ public class ActiveCall implements AsyncCallback<Object> {
   MethodHandle method;
   String callback;
   Object[] params;
+  BoundedInputStream body;
+  CallStats stats;
+  private Bulkhead lane;
+  private AdaptiveLimiter admittedBy;
+  private long admittedAt;
   Object result;
+  String cacheKey;
+  String resultJson;
   Throwable externalFailure;
   Throwable internalFailure;
   private Map<String, String> cookies;
+  List<ActiveCall> batch;
+  boolean batchEntry;
+  Runnable sendResponse;
+  private volatile boolean async;
+  private AsyncContext asyncContext;
+  private final AtomicBoolean awaitingResult = new AtomicBoolean(true);
+  private final AtomicInteger holds = new AtomicInteger(2);
 
   /**
    * Create a new call.
@@ -244,24 +266,178 @@ public class ActiveCall implements AsyncCallback<Object> {
     return result != null || externalFailure != null || internalFailure != null;
   }
 
+  /**
+   * Complete this call asynchronously.
+   *
+   * <p>By default the response is sent as soon as the service method returns, so the method must
+   * invoke onSuccess or onFailure before it does. A method that calls this first may instead return
+   * without a result, releasing the container's thread, and invoke onSuccess or onFailure later
+   * from any thread. The response is formatted and sent by whichever thread supplies the result;
+   * only the first onSuccess or onFailure invocation after this method matters.
+   *
+   * <p>If no result is supplied before the container's asynchronous timeout expires the call fails
+   * with an internal error. The servlet must be deployed with asynchronous support enabled.
+   *
+   * @throws IllegalStateException the request does not support asynchronous processing, or has
+   *     already been completed.
+   */
+  public final void startAsync() {
+    if (async) {
+      return;
+    }
+    if (isComplete()) {
+      throw new IllegalStateException("Call already completed");
+    }
+
+    if (!batchEntry) {
+      asyncContext = startAsync(httpRequest, httpResponse, Collections.singletonList(this));
+    } else if (!httpRequest.isAsyncSupported()) {
+      // The batch waits for this entry asynchronously once all
+      // entries have been dispatched.
+      //
+      throw new IllegalStateException("Request does not support async operation");
+    }
+    async = true;
+  }
+
+  /**
+   * Put a request into asynchronous mode on behalf of one or more calls.
+   *
+   * @return the request's context; asynchronous calls still awaiting a result when it times out
+   *     fail with an internal error. Calls of a batch that completed without going asynchronous
+   *     keep their result.
+   */
+  static AsyncContext startAsync(
+      final HttpServletRequest req,
+      final HttpServletResponse rsp,
+      final List<? extends ActiveCall> calls) {
+    final AsyncContext ctx = req.startAsync(req, rsp);
+    ctx.addListener(
+        new AsyncListener() {
+          @Override
+          public void onTimeout(final AsyncEvent event) {
+            for (final ActiveCall c : calls) {
+              if (c.isAsync()) {
+                c.onInternalFailure(new TimeoutException("Call did not complete in time"));
+              }
+            }
+          }
+
+          @Override
+          public void onError(final AsyncEvent event) {
+            for (final ActiveCall c : calls) {
+              if (c.isAsync()) {
+                c.onInternalFailure(event.getThrowable());
+              }
+            }
+          }
+
+          @Override
+          public void onStartAsync(final AsyncEvent event) {}
+
+          @Override
+          public void onComplete(final AsyncEvent event) {}
+        });
+    return ctx;
+  }
+
+  /** @return true if {@link #startAsync()} was invoked for this call. */
+  public final boolean isAsync() {
+    return async;
+  }
+
   @Override
   public final void onSuccess(final Object result) {
-    this.result = result;
-    this.externalFailure = null;
-    this.internalFailure = null;
+    if (claimResult()) {
+      this.result = result;
+      this.externalFailure = null;
+      this.internalFailure = null;
+      resultSet();
+    }
   }
 
   @Override
   public void onFailure(final Throwable error) {
-    this.result = null;
-    this.externalFailure = error;
-    this.internalFailure = null;
+    if (claimResult()) {
+      this.result = null;
+      this.externalFailure = error;
+      this.internalFailure = null;
+      resultSet();
+    }
   }
 
   public final void onInternalFailure(final Throwable error) {
-    this.result = null;
-    this.externalFailure = null;
-    this.internalFailure = error;
+    if (claimResult()) {
+      this.result = null;
+      this.externalFailure = null;
+      this.internalFailure = error;
+      resultSet();
+    }
+  }
+
+  private boolean claimResult() {
+    return !async || awaitingResult.compareAndSet(true, false);
+  }
+
+  private void resultSet() {
+    if (stats != null) {
+      stats.resultSet();
+    }
+    if (async) {
+      releaseLane();
+      release();
+    }
+  }
+
+  /** Hold a slot of a lane until the call's result is supplied. */
+  void holdLane(final Bulkhead b) {
+    lane = b;
+  }
+
+  /** Return the call's slot in its lane, if it holds one. */
+  void releaseLane() {
+    final Bulkhead b = lane;
+    if (b != null) {
+      lane = null;
+      b.release();
+    }
+  }
+
+  /** Count the request against the servlet's concurrency limit until its response is sent. */
+  void holdAdmission(final AdaptiveLimiter limiter) {
+    admittedBy = limiter;
+    admittedAt = System.nanoTime();
+  }
+
+  /**
+   * Return the request's place under the concurrency limit, if it holds one.
+   *
+   * @param sample true if the time the request took reflects the work of its methods.
+   */
+  void releaseAdmission(final boolean sample) {
+    final AdaptiveLimiter l = admittedBy;
+    if (l != null) {
+      admittedBy = null;
+      l.release(System.nanoTime() - admittedAt, sample);
+    }
+  }
+
+  /**
+   * Release one of the two holds on an asynchronous call.
+   *
+   * <p>The servlet thread holds the call until the service method has returned, and the call holds
+   * itself until a result is supplied. Whichever is released last sends the response.
+   */
+  void release() {
+    if (holds.decrementAndGet() == 0) {
+      try {
+        sendResponse.run();
+      } finally {
+        if (asyncContext != null) {
+          asyncContext.complete();
+        }
+      }
+    }
   }
 
   /** Mark the response to be uncached by proxies and browsers. */
@@ -0,0 +1,178 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the requests a servlet handles at once, adjusting the limit to the observed latency.
+ *
+ * <p>The limit follows a gradient algorithm in the style of TCP Vegas. Latency is sampled as
+ * requests complete and averaged over short windows. A long-term average tracks the latency of the
+ * server when it is not overloaded. When recent latency rises above the long-term average, requests
+ * are queueing for some shared resource (threads, CPU, a database), and the limit shrinks in
+ * proportion. When latency is at its usual level the limit grows by a small allowance for queueing,
+ * but only while the servlet is actually using at least half of it.
+ *
+ * <p>Requests over the limit are refused immediately rather than queued, before their body is read,
+ * so an overloaded server spends as little as possible on requests it cannot serve in time.
+ */
+public final class AdaptiveLimiter {
+  /** Shortest span of latency samples averaged before the limit is adjusted. */
+  private static final long WINDOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+  /** Fewest samples averaged before the limit is adjusted. */
+  private static final int WINDOW_SAMPLES = 10;
+
+  /** Number of windows the long-term latency average spans. */
+  private static final int LONG_WINDOWS = 600;
+
+  /** How far above the long-term average latency may rise before the limit shrinks. */
+  private static final double TOLERANCE = 1.5;
+
+  /** Weight of a new estimate of the limit. */
+  private static final double SMOOTHING = 0.2;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAdder rejected = new LongAdder();
+  private volatile int limit;
+
+  // Guarded by this.
+  private double estimatedLimit;
+  private double longRtt;
+  private long windowStart;
+  private long windowSum;
+  private int windowCount;
+  private int windowMaxInFlight;
+  private long samples;
+
+  /**
+   * Create a limiter.
+   *
+   * @param initialLimit number of requests allowed at once before any latency is observed.
+   * @param minLimit the limit never shrinks below this.
+   * @param maxLimit the limit never grows beyond this.
+   */
+  public AdaptiveLimiter(final int initialLimit, final int minLimit, final int maxLimit) {
+    if (minLimit <= 0 || maxLimit < minLimit) {
+      throw new IllegalArgumentException("Invalid limits " + minLimit + ".." + maxLimit);
+    }
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    this.estimatedLimit = limit;
+  }
+
+  /** @return number of requests currently allowed at once. */
+  public int getLimit() {
+    return limit;
+  }
+
+  /** @return number of requests admitted and not yet completed. */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /** @return number of requests refused since the servlet started. */
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  /** @return long-term average latency of a request, in milliseconds; 0 until measured. */
+  public synchronized double getLongTermLatencyMillis() {
+    return longRtt / 1e6;
+  }
+
+  /** @return number of latency samples taken since the servlet started. */
+  synchronized long getSamples() {
+    return samples;
+  }
+
+  /**
+   * Admit a request if the limit permits.
+   *
+   * @return true if admitted; the request must then be passed to {@link #release(long, boolean)}.
+   */
+  boolean acquire() {
+    for (; ; ) {
+      final int n = inFlight.get();
+      if (n >= limit) {
+        rejected.increment();
+        return false;
+      }
+      if (inFlight.compareAndSet(n, n + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Complete an admitted request.
+   *
+   * @param rtt nanoseconds from admission until the response was sent.
+   * @param sample true if the latency is representative of the service's work; false for requests
+   *     that failed before reaching a method, which would understate the latency.
+   */
+  void release(final long rtt, final boolean sample) {
+    final int n = inFlight.getAndDecrement();
+    if (sample) {
+      sample(rtt, n, System.nanoTime());
+    }
+  }
+
+  synchronized void sample(final long rtt, final int inFlightAtEnd, final long now) {
+    if (windowCount == 0) {
+      windowStart = now;
+    }
+    samples++;
+    windowSum += rtt;
+    windowCount++;
+    windowMaxInFlight = Math.max(windowMaxInFlight, inFlightAtEnd);
+    if (windowCount < WINDOW_SAMPLES || now - windowStart < WINDOW) {
+      return;
+    }
+
+    final double shortRtt = (double) windowSum / windowCount;
+    final int used = windowMaxInFlight;
+    windowSum = 0;
+    windowCount = 0;
+    windowMaxInFlight = 0;
+
+    if (longRtt == 0) {
+      longRtt = shortRtt;
+    } else {
+      longRtt += (shortRtt - longRtt) / LONG_WINDOWS;
+      if (longRtt / shortRtt > 2) {
+        // Latency dropped well below the long-term average, such as after
+        // an outage of a backend; let the average catch up quickly.
+        //
+        longRtt = (longRtt + shortRtt) / 2;
+      }
+    }
+
+    final double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+    double newLimit = estimatedLimit * gradient;
+    if (gradient == 1.0 && used >= estimatedLimit / 2) {
+      newLimit += Math.sqrt(estimatedLimit);
+    }
+    estimatedLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+    estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit));
+    limit = (int) estimatedLimit;
+  }
+}
@@ -0,0 +1,74 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response shared by the calls of a JSON-RPC 2.0 batch request.
+ *
+ * <p>Calls in a batch may run concurrently, so changes to headers and cookies are serialized. The
+ * status of the combined response is not decided by any single call, so attempts to set it are
+ * ignored.
+ */
+final class BatchResponse extends HttpServletResponseWrapper {
+  BatchResponse(final HttpServletResponse response) {
+    super(response);
+  }
+
+  @Override
+  public void setStatus(final int sc) {}
+
+  @Override
+  @Deprecated
+  public void setStatus(final int sc, final String sm) {}
+
+  @Override
+  public synchronized void addCookie(final Cookie cookie) {
+    super.addCookie(cookie);
+  }
+
+  @Override
+  public synchronized void setHeader(final String name, final String value) {
+    super.setHeader(name, value);
+  }
+
+  @Override
+  public synchronized void addHeader(final String name, final String value) {
+    super.addHeader(name, value);
+  }
+
+  @Override
+  public synchronized void setDateHeader(final String name, final long date) {
+    super.setDateHeader(name, date);
+  }
+
+  @Override
+  public synchronized void addDateHeader(final String name, final long date) {
+    super.addDateHeader(name, date);
+  }
+
+  @Override
+  public synchronized void setIntHeader(final String name, final int value) {
+    super.setIntHeader(name, value);
+  }
+
+  @Override
+  public synchronized void addIntHeader(final String name, final int value) {
+    super.addIntHeader(name, value);
+  }
+}
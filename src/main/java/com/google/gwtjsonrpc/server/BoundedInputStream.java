@@ -0,0 +1,128 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream that fails once more than a limited number of bytes have been read.
+ *
+ * <p>Used to bound the size of a request body as it is read, whether or not its length is known in
+ * advance, and even if it is decompressed as it is read. The bytes read may also be counted against
+ * the servlet's {@link InFlightBytes} until the stream is closed.
+ */
+final class BoundedInputStream extends FilterInputStream {
+  /** Thrown when the stream is read past its limit. */
+  static final class LimitExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    LimitExceededException() {
+      super("Stream exceeds limit");
+    }
+  }
+
+  private final InFlightBytes inFlight;
+  private long limit;
+  private long count;
+  private long released;
+
+  BoundedInputStream(final InputStream in, final long limit) {
+    this(in, limit, null);
+  }
+
+  /**
+   * @param in stream to read.
+   * @param limit number of bytes that may be read.
+   * @param inFlight counter to hold the bytes read against; null if they are not counted.
+   */
+  BoundedInputStream(final InputStream in, final long limit, final InFlightBytes inFlight) {
+    super(in);
+    this.limit = limit;
+    this.inFlight = inFlight;
+  }
+
+  /**
+   * Change the number of bytes that may be read.
+   *
+   * @throws LimitExceededException more than the new limit has already been read.
+   */
+  void limit(final long n) throws LimitExceededException {
+    limit = n;
+    if (count > limit) {
+      throw new LimitExceededException();
+    }
+  }
+
+  /** @return number of bytes read so far. */
+  long count() {
+    return count;
+  }
+
+  @Override
+  public int read() throws IOException {
+    final int b = super.read();
+    if (b >= 0) {
+      consumed(1);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    // Ask for one byte beyond the limit, so a stream that ends exactly
+    // at the limit is accepted and any longer stream is detected.
+    //
+    final int n = super.read(b, off, (int) Math.min(len, limit - count + 1));
+    if (n > 0) {
+      consumed(n);
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(final long n) throws IOException {
+    final long r = super.skip(Math.min(n, limit - count + 1));
+    if (r > 0) {
+      consumed(r);
+    }
+    return r;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (inFlight != null) {
+      inFlight.release(count - released);
+      released = count;
+    }
+    super.close();
+  }
+
+  private void consumed(final long n) throws IOException {
+    if (inFlight != null) {
+      inFlight.acquire(n);
+    }
+    count += n;
+    if (count > limit) {
+      throw new LimitExceededException();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the calls of one {@link com.google.gwtjsonrpc.common.Lane} running at once.
+ *
+ * <p>A call that finds every slot taken waits in a short first-come first-served queue. A call is
+ * refused outright when the queue is full, or when it has waited too long, so that a lane under
+ * pressure sheds load immediately instead of tying up the container's threads.
+ */
+public final class Bulkhead {
+  private final int concurrency;
+  private final int queue;
+  private final long maxWaitMillis;
+  private final Semaphore slots;
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final LongAdder rejected = new LongAdder();
+
+  /**
+   * Create a bulkhead.
+   *
+   * @param concurrency number of calls that may run at once.
+   * @param queue number of calls that may wait for a slot.
+   * @param maxWaitMillis longest time a call waits for a slot before it is refused.
+   */
+  public Bulkhead(final int concurrency, final int queue, final long maxWaitMillis) {
+    if (concurrency <= 0) {
+      throw new IllegalArgumentException("Invalid concurrency " + concurrency);
+    }
+    this.concurrency = concurrency;
+    this.queue = Math.max(0, queue);
+    this.maxWaitMillis = Math.max(0, maxWaitMillis);
+    this.slots = new Semaphore(concurrency, true);
+  }
+
+  /** @return number of calls that may run at once. */
+  public int getConcurrency() {
+    return concurrency;
+  }
+
+  /** @return number of calls running. */
+  public int getActive() {
+    return concurrency - slots.availablePermits();
+  }
+
+  /** @return number of calls waiting for a slot. */
+  public int getQueued() {
+    return waiting.get();
+  }
+
+  /** @return number of calls refused since the servlet started. */
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  /**
+   * Take a slot, waiting in the queue if necessary.
+   *
+   * @return true if a slot was taken and must be returned by {@link #release()}; false if the call
+   *     was refused.
+   */
+  boolean acquire() {
+    try {
+      // Unlike tryAcquire(), a timed tryAcquire honors the fairness of
+      // the semaphore, so a new call does not barge ahead of the calls
+      // already queued for a slot.
+      //
+      if (slots.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+      if (waiting.incrementAndGet() <= queue) {
+        try {
+          if (slots.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+            return true;
+          }
+        } finally {
+          waiting.decrementAndGet();
+        }
+      } else {
+        waiting.decrementAndGet();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    rejected.increment();
+    return false;
+  }
+
+  /** Return a slot taken by {@link #acquire()}. */
+  void release() {
+    slots.release();
+  }
+}
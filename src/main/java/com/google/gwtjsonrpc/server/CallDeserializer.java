@@ -14,17 +14,30 @@
 
 package com.google.gwtjsonrpc.server;
 
-import com.google.gson.InstanceCreator;
 import com.google.gson.JsonArray;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.StringReader;
 import java.lang.reflect.Type;
 
-final class CallDeserializer<CallType extends ActiveCall>
-    implements JsonDeserializer<CallType>, InstanceCreator<CallType> {
+/**
+ * Populates an {@link ActiveCall} from the envelope of a request.
+ *
+ * <p>Instances are created per call, so the servlet's converter does not capture any call state and
+ * can be shared by all requests. Parameter values are bound by the adapters precompiled in each
+ * {@link MethodHandle}.
+ */
+final class CallDeserializer<CallType extends ActiveCall> {
+  private static final JsonParser PARSER = new JsonParser();
+
   private final CallType req;
   private final JsonServlet<? extends ActiveCall> server;
 
@@ -33,31 +46,269 @@ final class CallDeserializer<CallType extends ActiveCall>
     server = jsonServlet;
   }
 
-  @Override
-  public CallType createInstance(final Type type) {
+  /**
+   * Parse the request directly from a JSON stream.
+   *
+   * <p>The method is resolved as soon as its name is read, so each element of <code>params</code>
+   * is bound straight into its declared type without first building a tree of the request. If a
+   * client sends <code>params</code> before <code>method</code> the parameters are buffered as a
+   * tree and bound once the method is known.
+   *
+   * @param in stream positioned at the start of the request object.
+   * @return the call, populated from the request.
+   * @throws IOException the stream cannot be read, or is not well formed JSON.
+   */
+  CallType read(final JsonReader in) throws IOException {
+    if (in.peek() != JsonToken.BEGIN_OBJECT) {
+      throw new JsonParseException("Expected object");
+    }
+
+    JsonElement jsonrpc = null;
+    JsonElement version = null;
+    JsonElement method = null;
+    JsonElement callback = null;
+    JsonElement xsrfKey = null;
+    JsonElement bufferedParams = null;
+    boolean hasParams = false;
+    boolean paramCountOk = true;
+
+    in.beginObject();
+    while (in.hasNext()) {
+      switch (in.nextName()) {
+        case "id":
+          req.id = readTree(in);
+          break;
+        case "jsonrpc":
+          jsonrpc = readTree(in);
+          setVersion(jsonrpc, version);
+          break;
+        case "version":
+          version = readTree(in);
+          setVersion(jsonrpc, version);
+          break;
+        case "method":
+          if (method != null) {
+            throw new JsonParseException("Duplicate method name");
+          }
+          method = readTree(in);
+          if (isString(method)) {
+            req.method = server.lookupMethod(method.getAsString());
+          }
+          server.limitRequestSize(req);
+          break;
+        case "callback":
+          callback = readTree(in);
+          break;
+        case "xsrfKey":
+          xsrfKey = readTree(in);
+          break;
+        case "params":
+          if (hasParams) {
+            throw new JsonParseException("Duplicate params array");
+          }
+          hasParams = true;
+          if (req.method != null) {
+            req.params = readParams(in);
+            paramCountOk = req.params != null;
+          } else if (method == null) {
+            bufferedParams = readTree(in);
+          } else {
+            // The method is unknown; the request fails once the
+            // envelope has been checked, so don't bother binding.
+            //
+            in.skipValue();
+          }
+          break;
+        default:
+          in.skipValue();
+          break;
+      }
+    }
+    in.endObject();
+
+    checkVersion(jsonrpc, version);
+    if (!isString(method)) {
+      throw new JsonParseException("Expected method name as string");
+    }
+    if (req.method == null) {
+      throw new NoSuchRemoteMethodException();
+    }
+    setCallback(callback);
+    setXsrfKey(xsrfKey);
+
+    if (!paramCountOk) {
+      throw paramCountMismatch(req.method.getParamTypes());
+    } else if (bufferedParams != null) {
+      req.params = bindParams(bufferedParams);
+    } else if (!hasParams) {
+      if (req.method.getParamTypes().length != 0) {
+        throw new JsonParseException("Expected params array");
+      }
+      req.params = JsonServlet.NO_PARAMS;
+    }
     return req;
   }
 
-  @Override
-  public CallType deserialize(
-      final JsonElement json, final Type typeOfT, final JsonDeserializationContext context)
-      throws JsonParseException, NoSuchRemoteMethodException {
+  /**
+   * Parse a request that has already been read as a tree.
+   *
+   * <p>Used for the entries of a batch, where an error in one entry must not prevent the rest of
+   * the batch from being read.
+   *
+   * @param json the request object.
+   * @return the call, populated from the request.
+   */
+  CallType read(final JsonElement json) {
     if (!json.isJsonObject()) {
       throw new JsonParseException("Expected object");
     }
-
     final JsonObject in = json.getAsJsonObject();
+
     req.id = in.get("id");
+    checkVersion(in.get("jsonrpc"), in.get("version"));
+
+    final JsonElement method = in.get("method");
+    if (!isString(method)) {
+      throw new JsonParseException("Expected method name as string");
+    }
+    req.method = server.lookupMethod(method.getAsString());
+    if (req.method == null) {
+      throw new NoSuchRemoteMethodException();
+    }
+    setCallback(in.get("callback"));
+    setXsrfKey(in.get("xsrfKey"));
+
+    final JsonElement params = in.get("params");
+    if (params != null) {
+      req.params = bindParams(params);
+    } else if (req.method.getParamTypes().length != 0) {
+      throw new JsonParseException("Expected params array");
+    } else {
+      req.params = JsonServlet.NO_PARAMS;
+    }
+    return req;
+  }
+
+  /**
+   * Populate a JSON-RPC 2.0 call made over HTTP GET.
+   *
+   * @param method name of the method, from the <code>method</code> query parameter.
+   * @param id request identity, from the <code>id</code> query parameter.
+   * @param params JSON text of the positional parameter array.
+   * @return the call, populated from the request.
+   * @throws IOException the parameters are not well formed JSON.
+   */
+  CallType readGet(final String method, final String id, final String params) throws IOException {
+    req.id = id != null ? new JsonPrimitive(id) : JsonNull.INSTANCE;
+    req.versionName = "jsonrpc";
+    req.versionValue = new JsonPrimitive("2.0");
 
-    final JsonElement jsonrpc = in.get("jsonrpc");
-    final JsonElement version = in.get("version");
+    if (method == null) {
+      throw new JsonParseException("Expected method name as string");
+    }
+    req.method = server.lookupMethod(method);
+    if (req.method == null) {
+      throw new NoSuchRemoteMethodException();
+    }
+
+    if (params == null) {
+      throw new JsonParseException("Expected params array");
+    }
+    final JsonReader in = new JsonReader(new StringReader(params));
+    in.setLenient(true);
+    req.params = readParams(in);
+    if (req.params == null) {
+      throw paramCountMismatch(req.method.getParamTypes());
+    }
+    if (in.peek() != JsonToken.END_DOCUMENT) {
+      throw new JsonParseException("Expected end of params array");
+    }
+    return req;
+  }
+
+  /**
+   * Read one value from a JSON stream as a tree.
+   *
+   * @param in stream positioned at the start of the value.
+   * @return the value.
+   * @throws IOException the stream cannot be read, or is not well formed JSON. Unlike {@link
+   *     JsonParser#parse(JsonReader)} failures of the stream itself are not wrapped, so a body that
+   *     is too large or not UTF-8 is not mistaken for a syntax error.
+   */
+  static JsonElement readTree(final JsonReader in) throws IOException {
+    try {
+      return PARSER.parse(in);
+    } catch (JsonIOException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /** @return the bound parameters; null if the array has the wrong number of elements. */
+  private Object[] readParams(final JsonReader in) throws IOException {
+    final Type[] paramTypes = req.method.getParamTypes();
+    if (in.peek() != JsonToken.BEGIN_ARRAY) {
+      throw new JsonParseException("Expected params array");
+    }
+
+    final Object[] r = new Object[paramTypes.length];
+    int n = 0;
+    in.beginArray();
+    while (in.hasNext()) {
+      if (n < r.length) {
+        r[n] = req.method.readParam(n, in);
+      } else {
+        in.skipValue();
+      }
+      n++;
+    }
+    in.endArray();
+    return n == r.length ? r : null;
+  }
+
+  private Object[] bindParams(final JsonElement params) {
+    final Type[] paramTypes = req.method.getParamTypes();
+    if (!params.isJsonArray()) {
+      throw new JsonParseException("Expected params array");
+    }
+
+    final JsonArray paramsArray = params.getAsJsonArray();
+    if (paramsArray.size() != paramTypes.length) {
+      throw paramCountMismatch(paramTypes);
+    }
+
+    final Object[] r = new Object[paramTypes.length];
+    for (int i = 0; i < r.length; i++) {
+      r[i] = req.method.bindParam(i, paramsArray.get(i));
+    }
+    return r;
+  }
+
+  private void checkVersion(final JsonElement jsonrpc, final JsonElement version) {
+    final String err = setVersion(jsonrpc, version);
+    if (err != null) {
+      throw new JsonParseException(err);
+    }
+  }
+
+  /**
+   * Record the protocol version of the request.
+   *
+   * <p>While streaming this is applied as soon as the version is read, so that an error found later
+   * in the request can still be reported using the client's protocol.
+   *
+   * @return null if the version is acceptable; otherwise a description of the problem.
+   */
+  private String setVersion(final JsonElement jsonrpc, final JsonElement version) {
     if (isString(jsonrpc) && version == null) {
       final String v = jsonrpc.getAsString();
       if ("2.0".equals(v)) {
         req.versionName = "jsonrpc";
         req.versionValue = jsonrpc;
       } else {
-        throw new JsonParseException("Expected jsonrpc=2.0");
+        return "Expected jsonrpc=2.0";
       }
 
     } else if (isString(version) && jsonrpc == null) {
@@ -66,67 +317,35 @@ final class CallDeserializer<CallType extends ActiveCall>
         req.versionName = "version";
         req.versionValue = version;
       } else {
-        throw new JsonParseException("Expected version=1.1");
+        return "Expected version=1.1";
       }
     } else {
-      throw new JsonParseException("Expected version=1.1 or jsonrpc=2.0");
-    }
-
-    final JsonElement method = in.get("method");
-    if (!isString(method)) {
-      throw new JsonParseException("Expected method name as string");
-    }
-
-    req.method = server.lookupMethod(method.getAsString());
-    if (req.method == null) {
-      throw new NoSuchRemoteMethodException();
+      return "Expected version=1.1 or jsonrpc=2.0";
     }
+    return null;
+  }
 
-    final JsonElement callback = in.get("callback");
+  private void setCallback(final JsonElement callback) {
     if (callback != null) {
       if (!isString(callback)) {
         throw new JsonParseException("Expected callback as string");
       }
       req.callback = callback.getAsString();
     }
+  }
 
-    final JsonElement xsrfKey = in.get("xsrfKey");
+  private void setXsrfKey(final JsonElement xsrfKey) {
     if (xsrfKey != null) {
       if (!isString(xsrfKey)) {
         throw new JsonParseException("Expected xsrfKey as string");
       }
       req.xsrfKeyIn = xsrfKey.getAsString();
     }
+  }
 
-    final Type[] paramTypes = req.method.getParamTypes();
-    final JsonElement params = in.get("params");
-    if (params != null) {
-      if (!params.isJsonArray()) {
-        throw new JsonParseException("Expected params array");
-      }
-
-      final JsonArray paramsArray = params.getAsJsonArray();
-      if (paramsArray.size() != paramTypes.length) {
-        throw new JsonParseException(
-            "Expected " + paramTypes.length + " parameter values in params array");
-      }
-
-      final Object[] r = new Object[paramTypes.length];
-      for (int i = 0; i < r.length; i++) {
-        final JsonElement v = paramsArray.get(i);
-        if (v != null) {
-          r[i] = context.deserialize(v, paramTypes[i]);
-        }
-      }
-      req.params = r;
-    } else {
-      if (paramTypes.length != 0) {
-        throw new JsonParseException("Expected params array");
-      }
-      req.params = JsonServlet.NO_PARAMS;
-    }
-
-    return req;
+  private static JsonParseException paramCountMismatch(final Type[] paramTypes) {
+    return new JsonParseException(
+        "Expected " + paramTypes.length + " parameter values in params array");
   }
 
   private static boolean isString(final JsonElement e) {
@@ -0,0 +1,151 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import com.google.gwtjsonrpc.server.RpcMetrics.Phase;
+
+/**
+ * Measurements taken while handling one call, until they are added to {@link RpcMetrics}.
+ *
+ * <p>A call is handled by one thread at a time, so the fields are not synchronized; the thread that
+ * supplies an asynchronous result hands the call over through {@link ActiveCall}.
+ */
+final class CallStats {
+  final long start;
+  private final long[] nanos = new long[Phase.values().length];
+  private int phases;
+  private long invoked;
+  private long responseStart;
+
+  private long cpuStart;
+  private long allocatedStart;
+
+  long requestBytes;
+  long requestWireBytes;
+  long responseBytes;
+  long responseWireBytes;
+
+  /** CPU time used by the call's service method and response, in nanoseconds. */
+  long cpuNanos;
+
+  /** Bytes allocated by the call's service method and response. */
+  long allocatedBytes;
+
+  /** Stream of compressed request bytes, while a compressed body is being read. */
+  BoundedInputStream wire;
+
+  CallStats(final long start) {
+    this.start = start;
+  }
+
+  /**
+   * Add the time since <code>since</code> to a phase.
+   *
+   * @return the current time, so that consecutive phases may be chained.
+   */
+  long add(final Phase phase, final long since) {
+    final long now = System.nanoTime();
+    addNanos(phase, now - since);
+    return now;
+  }
+
+  private void addNanos(final Phase phase, final long n) {
+    nanos[phase.ordinal()] += n;
+    phases |= 1 << phase.ordinal();
+  }
+
+  /** @return true if the call went through the phase. */
+  boolean ran(final Phase phase) {
+    return (phases & (1 << phase.ordinal())) != 0;
+  }
+
+  /** @return nanoseconds spent in the phase. */
+  long nanos(final Phase phase) {
+    return nanos[phase.ordinal()];
+  }
+
+  /** @return nanoseconds spent in each phase, indexed by {@link Phase#ordinal()}. */
+  long[] phaseNanos() {
+    return nanos.clone();
+  }
+
+  /** Note that measured work is starting on the current thread. */
+  void workStarting(final ThreadResources r) {
+    cpuStart = r.cpuNanos();
+    allocatedStart = r.allocatedBytes();
+  }
+
+  /** Note that measured work started by the current thread has finished. */
+  void workDone(final ThreadResources r) {
+    cpuNanos += r.cpuNanos() - cpuStart;
+    allocatedBytes += r.allocatedBytes() - allocatedStart;
+  }
+
+  /** Record the size of a request body once it has been read. */
+  void requestRead(final BoundedInputStream body) {
+    requestBytes = body.count();
+    requestWireBytes = wire != null ? wire.count() : requestBytes;
+    wire = null;
+  }
+
+  /** Note that the service method is about to be invoked. */
+  void invoking() {
+    invoked = System.nanoTime();
+  }
+
+  /** Note that the result was supplied, ending the invocation. */
+  void resultSet() {
+    if (invoked != 0) {
+      add(Phase.INVOKE, invoked);
+      invoked = 0;
+    }
+  }
+
+  /**
+   * Note that the response is about to be formatted, on the current thread.
+   *
+   * @param r reader of the thread's resources; null if they are not measured.
+   */
+  void responseStarting(final ThreadResources r) {
+    if (r != null) {
+      workStarting(r);
+    }
+    responseStart = System.nanoTime();
+  }
+
+  /**
+   * Note that the response has been written by the thread that started it.
+   *
+   * <p>Time spent by the compressor is separated from the time spent formatting the response.
+   *
+   * @param size number of bytes of JSON in the response, before compression.
+   * @param u work done compressing the response; null if it was not compressed.
+   * @param r reader of the thread's resources; null if they are not measured.
+   */
+  void responseWritten(final long size, final ResponseCompressor.Usage u, final ThreadResources r) {
+    final long now = System.nanoTime();
+    if (r != null) {
+      workDone(r);
+    }
+    final long z = u != null ? u.nanos : 0;
+    final long out = u != null ? u.bytesOut : 0;
+    if (z > 0) {
+      addNanos(Phase.COMPRESS, z);
+    }
+    addNanos(Phase.FORMAT, now - responseStart - z);
+    responseBytes += size;
+    responseWireBytes += out > 0 ? out : size;
+  }
+}
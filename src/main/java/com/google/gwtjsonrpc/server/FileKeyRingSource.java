@@ -0,0 +1,133 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads a {@link KeyRing} from a properties file shared by all servers.
+ *
+ * <p>The file names the primary key and lists every key by id:
+ *
+ * <pre>
+ * primary = 2020b
+ * key.2020a = base64-encoded-key...
+ * key.2020b = base64-encoded-key...
+ * </pre>
+ *
+ * <p>The file is checked for changes periodically, so keys can be rotated without restarting. A new
+ * version of the file should be moved into place atomically; if it cannot be read, the keys loaded
+ * previously remain in use and the failure is logged once for that version of the file.
+ */
+public class FileKeyRingSource implements KeyRingSource {
+  private static final Logger log = Logger.getLogger(FileKeyRingSource.class.getName());
+  private static final String KEY_PREFIX = "key.";
+
+  private final File file;
+  private final long checkInterval;
+
+  private volatile KeyRing ring;
+  private volatile long lastModified;
+  private volatile long nextCheck;
+  private long lastFailed;
+
+  /**
+   * Create a source checking the file for changes every 30 seconds.
+   *
+   * @param file the key ring file.
+   * @throws XsrfException the file cannot be read, or does not describe a valid key ring.
+   */
+  public FileKeyRingSource(final File file) throws XsrfException {
+    this(file, 30);
+  }
+
+  /**
+   * Create a source.
+   *
+   * @param file the key ring file.
+   * @param checkSeconds how often to check the file for changes, in seconds.
+   * @throws XsrfException the file cannot be read, or does not describe a valid key ring.
+   */
+  public FileKeyRingSource(final File file, final int checkSeconds) throws XsrfException {
+    this.file = file;
+    this.checkInterval = TimeUnit.SECONDS.toNanos(checkSeconds);
+    lastModified = file.lastModified();
+    ring = load();
+    nextCheck = System.nanoTime() + checkInterval;
+  }
+
+  @Override
+  public KeyRing get() {
+    final long now = System.nanoTime();
+    if (now - nextCheck >= 0) {
+      reload(now);
+    }
+    return ring;
+  }
+
+  private synchronized void reload(final long now) {
+    if (now - nextCheck < 0) {
+      return; // Another thread has just checked.
+    }
+    nextCheck = now + checkInterval;
+
+    final long m = file.lastModified();
+    if (m != lastModified) {
+      try {
+        ring = load();
+        lastModified = m;
+      } catch (XsrfException e) {
+        // Keep using the current keys, and try again at the next check.
+        // Once the old keys are retired every token would be rejected,
+        // so make sure a broken file does not go unnoticed.
+        //
+        if (m != lastFailed) {
+          lastFailed = m;
+          log.log(Level.WARNING, "Keeping previous keys; cannot reload key ring " + file, e);
+        }
+      }
+    }
+  }
+
+  private KeyRing load() throws XsrfException {
+    final Properties p = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      p.load(in);
+    } catch (IOException e) {
+      throw new XsrfException("Cannot read key ring " + file, e);
+    }
+
+    final Map<String, String> keys = new LinkedHashMap<>();
+    for (final String name : p.stringPropertyNames()) {
+      if (name.startsWith(KEY_PREFIX)) {
+        keys.put(name.substring(KEY_PREFIX.length()), p.getProperty(name).trim());
+      }
+    }
+    final String primary = p.getProperty("primary");
+    if (primary == null) {
+      throw new XsrfException("No primary key in key ring " + file);
+    }
+    return new KeyRing(primary.trim(), keys);
+  }
+}
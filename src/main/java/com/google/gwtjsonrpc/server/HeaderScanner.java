@@ -0,0 +1,253 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+/**
+ * Parses HTTP header values without allocating.
+ *
+ * <p>Request headers are checked on every call, so rather than splitting them into substrings the
+ * scanner compares tokens in place, ignoring case and optional whitespace as HTTP requires.
+ */
+final class HeaderScanner {
+  /** Quality of an element listed without a q parameter. */
+  static final int Q_DEFAULT = 1000;
+
+  /**
+   * Test the media type of a <code>Content-Type</code> header, ignoring its parameters.
+   *
+   * @param header value of the header.
+   * @param type expected media type.
+   * @return true if the header's media type is {@code type}.
+   */
+  static boolean isMediaType(final String header, final String type) {
+    final int start = skipSpace(header, 0, header.length());
+    final int end = trimEnd(header, start, tokenEnd(header, start));
+    return regionIs(header, start, end, type);
+  }
+
+  /**
+   * Test a header holding a single token, such as <code>Content-Encoding</code>.
+   *
+   * @param header value of the header.
+   * @param token expected token; the empty string to test for a blank header.
+   * @return true if the header is exactly {@code token}.
+   */
+  static boolean is(final String header, final String token) {
+    final int start = skipSpace(header, 0, header.length());
+    final int end = trimEnd(header, start, header.length());
+    return regionIs(header, start, end, token);
+  }
+
+  /**
+   * Find the quality of an element in a list header such as <code>Accept</code> or <code>
+   * Accept-Encoding</code>.
+   *
+   * @param header value of the header.
+   * @param token element to look for, such as a media type or content coding.
+   * @return quality of the element in thousandths, from 0 to {@link #Q_DEFAULT}; -1 if the element
+   *     is not listed. If it is listed more than once, the highest quality given.
+   */
+  static int quality(final String header, final String token) {
+    final int len = header.length();
+    int best = -1;
+    int i = 0;
+    while (i < len) {
+      final int start = skipSpace(header, i, len);
+      final int nameEnd = tokenEnd(header, start);
+      final boolean match = regionIs(header, start, trimEnd(header, start, nameEnd), token);
+
+      // Read the parameters of the element, up to the next ','.
+      //
+      int q = Q_DEFAULT;
+      i = nameEnd;
+      while (i < len && header.charAt(i) == ';') {
+        final int p = skipSpace(header, i + 1, len);
+        final int eq = nameEnd(header, p);
+        if (eq < len && header.charAt(eq) == '=') {
+          final int valueStart = skipSpace(header, eq + 1, len);
+          final int valueEnd = valueEnd(header, valueStart);
+          if (regionIs(header, p, trimEnd(header, p, eq), "q")) {
+            q = parseQuality(header, valueStart, trimEnd(header, valueStart, valueEnd));
+          }
+          i = skipSpace(header, valueEnd, len);
+        } else {
+          i = eq;
+        }
+      }
+      if (match && q > best) {
+        best = q;
+      }
+
+      // Skip anything malformed until the next element.
+      //
+      while (i < len && header.charAt(i) != ',') {
+        i++;
+      }
+      i++;
+    }
+    return best;
+  }
+
+  /**
+   * Test whether an <code>If-None-Match</code> header lists an entity tag.
+   *
+   * <p>Tags are compared weakly, as <code>If-None-Match</code> requires: a <code>W/</code> prefix
+   * on either tag is ignored, and the quoted parts must be identical.
+   *
+   * @param header value of the header.
+   * @param tag the entity tag, including its quotes and any <code>W/</code> prefix.
+   * @return true if the header lists the tag or is <code>*</code>.
+   */
+  static boolean matchesEntityTag(final String header, final String tag) {
+    final int tagStart = tag.startsWith("W/") ? 2 : 0;
+    final int tagLen = tag.length() - tagStart;
+    final int len = header.length();
+    int i = 0;
+    while (i < len) {
+      int start = skipSpace(header, i, len);
+      if (header.startsWith("W/", start)) {
+        start += 2;
+      }
+
+      // The quoted part of a tag may contain ',' but never '"'.
+      //
+      int end;
+      if (start < len && header.charAt(start) == '"') {
+        end = header.indexOf('"', start + 1);
+        end = end < 0 ? len : end + 1;
+      } else {
+        end = start;
+      }
+      while (end < len && header.charAt(end) != ',') {
+        end++;
+      }
+      final int tagEnd = trimEnd(header, start, end);
+      if (tagEnd - start == tagLen && header.regionMatches(start, tag, tagStart, tagLen)) {
+        return true;
+      }
+      if (tagEnd - start == 1 && header.charAt(start) == '*') {
+        return true;
+      }
+      i = end + 1;
+    }
+    return false;
+  }
+
+  /**
+   * Test if a value contains a string, ignoring case.
+   *
+   * @param value text to search.
+   * @param s text to search for.
+   */
+  static boolean containsIgnoreCase(final String value, final String s) {
+    for (int i = 0; i + s.length() <= value.length(); i++) {
+      if (value.regionMatches(true, i, s, 0, s.length())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** @return the q-value in thousandths; 0 if it is malformed. */
+  private static int parseQuality(final String s, final int start, final int end) {
+    if (start == end) {
+      return 0;
+    }
+    final char lead = s.charAt(start);
+    if (lead != '0' && lead != '1') {
+      return 0;
+    }
+    int q = lead == '1' ? Q_DEFAULT : 0;
+    if (start + 1 == end) {
+      return q;
+    }
+    if (s.charAt(start + 1) != '.' || end - start > 5) {
+      return 0;
+    }
+    int scale = 100;
+    for (int i = start + 2; i < end; i++, scale /= 10) {
+      final char c = s.charAt(i);
+      if (c < '0' || '9' < c) {
+        return 0;
+      }
+      q += (c - '0') * scale;
+    }
+    return Math.min(q, Q_DEFAULT);
+  }
+
+  /** @return index of the end of the token starting at {@code i}, before any ';' or ','. */
+  private static int tokenEnd(final String s, int i) {
+    while (i < s.length()) {
+      final char c = s.charAt(i);
+      if (c == ';' || c == ',') {
+        break;
+      }
+      i++;
+    }
+    return i;
+  }
+
+  /** @return index of the end of a parameter value, which may be a quoted string. */
+  private static int valueEnd(final String s, int i) {
+    if (i < s.length() && s.charAt(i) == '"') {
+      for (i++; i < s.length(); i++) {
+        final char c = s.charAt(i);
+        if (c == '\\') {
+          i++;
+        } else if (c == '"') {
+          return i + 1;
+        }
+      }
+      return s.length();
+    }
+    return tokenEnd(s, i);
+  }
+
+  /** @return index of the end of a parameter name, at its '=' if it has a value. */
+  private static int nameEnd(final String s, int i) {
+    while (i < s.length()) {
+      final char c = s.charAt(i);
+      if (c == '=' || c == ';' || c == ',') {
+        break;
+      }
+      i++;
+    }
+    return i;
+  }
+
+  private static int skipSpace(final String s, int i, final int end) {
+    while (i < end && isSpace(s.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private static int trimEnd(final String s, final int start, int end) {
+    while (end > start && isSpace(s.charAt(end - 1))) {
+      end--;
+    }
+    return end;
+  }
+
+  private static boolean isSpace(final char c) {
+    return c == ' ' || c == '\t';
+  }
+
+  private static boolean regionIs(final String s, final int start, final int end, final String t) {
+    return end - start == t.length() && s.regionMatches(true, start, t, 0, t.length());
+  }
+
+  private HeaderScanner() {}
+}
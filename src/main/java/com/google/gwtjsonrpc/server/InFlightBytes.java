@@ -0,0 +1,70 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes of request bodies being read by a servlet.
+ *
+ * <p>Bodies are counted as they are read, so a burst of large uploads is refused once the total
+ * reaches a limit, rather than being parsed into memory all at once.
+ */
+final class InFlightBytes {
+  /** Thrown when reading more of a body would exceed the limit. */
+  static final class ExhaustedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    ExhaustedException() {
+      super("Too many request bytes in flight");
+    }
+  }
+
+  private final long max;
+  private final AtomicLong used = new AtomicLong();
+
+  /** @param max number of bytes that may be in flight at once. */
+  InFlightBytes(final long max) {
+    this.max = max;
+  }
+
+  /** @return true if {@code n} more bytes would currently fit under the limit. */
+  boolean hasRoom(final long n) {
+    return used.get() + n <= max;
+  }
+
+  /**
+   * Count bytes read from a body.
+   *
+   * @throws ExhaustedException the bytes do not fit; they are not counted.
+   */
+  void acquire(final long n) throws ExhaustedException {
+    if (used.addAndGet(n) > max) {
+      used.addAndGet(-n);
+      throw new ExhaustedException();
+    }
+  }
+
+  /** @return number of bytes currently in flight. */
+  long get() {
+    return used.get();
+  }
+
+  /** Release bytes once their body has been parsed. */
+  void release(final long n) {
+    used.addAndGet(-n);
+  }
+}
@@ -16,40 +16,61 @@ package com.google.gwtjsonrpc.server;
 
 import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
 import static javax.servlet.http.HttpServletResponse.SC_NOT_FOUND;
+import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.InstanceCreator;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonNull;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 import com.google.gwtjsonrpc.common.AsyncCallback;
+import com.google.gwtjsonrpc.common.Cacheable;
+import com.google.gwtjsonrpc.common.ConditionalGet;
 import com.google.gwtjsonrpc.common.JsonConstants;
+import com.google.gwtjsonrpc.common.Lane;
+import com.google.gwtjsonrpc.common.MaxRequestSize;
 import com.google.gwtjsonrpc.common.RemoteJsonService;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
-import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -70,10 +91,15 @@ import org.apache.commons.codec.binary.Base64;
  * parameters are supported.
  *
  * <p><b>JSON-RPC 2.0</b><br>
- * Calling conventions match the JSON-RPC 2.0 specification.
+ * Calling conventions match the JSON-RPC 2.0 specification. Batch requests are supported; the calls
+ * of a batch are run in parallel and answered in a single response.
  *
  * <p>When supported by the browser/client, the "gzip" encoding is used to compress the resulting
  * JSON, reducing transfer time for the response data.
+ *
+ * <p>Service methods that wait on other systems may call {@link ActiveCall#startAsync()} on their
+ * callback and supply the result later from another thread. The servlet must then be deployed with
+ * asynchronous support enabled.
  */
 @SuppressWarnings("serial")
 public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServlet {
@@ -112,8 +138,18 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
   static final Object[] NO_PARAMS = {};
   private static final String ENC = "UTF-8";
 
+  private Gson gson;
   private Map<String, MethodHandle> myMethods;
   private SignedToken xsrf;
+  private ExecutorService batchExecutor;
+  private ResultCache resultCache;
+  private ResponseCompressor compressor;
+  private long bodyLimit;
+  private InFlightBytes inFlight;
+  private RpcMetrics metrics;
+  private ThreadResources threadResources;
+  private Map<String, Bulkhead> lanes;
+  private AdaptiveLimiter limiter;
 
   @Override
   public void init(final ServletConfig config) throws ServletException {
@@ -126,7 +162,8 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
       throw new ServletException("Service handle not available", e);
     }
 
-    myMethods = methods(impl);
+    gson = createGsonBuilder().create();
+    myMethods = methods(impl, gson);
     if (myMethods.isEmpty()) {
       throw new ServletException("No service methods declared");
     }
@@ -136,6 +173,71 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
     } catch (XsrfException e) {
       throw new ServletException("Cannot initialize XSRF", e);
     }
+
+    bodyLimit = maxRequestSize();
+    for (final MethodHandle m : myMethods.values()) {
+      bodyLimit = Math.max(bodyLimit, m.getMaxRequestSize());
+    }
+    final long inFlightBytes = maxInFlightRequestBytes();
+    if (inFlightBytes > 0) {
+      inFlight = new InFlightBytes(inFlightBytes);
+    }
+
+    lanes = new HashMap<>();
+    for (final MethodHandle m : myMethods.values()) {
+      final String lane = m.getLane();
+      if (lane != null && !lanes.containsKey(lane)) {
+        lanes.put(lane, createLane(lane));
+      }
+    }
+
+    limiter = createConcurrencyLimiter();
+    compressor = createResponseCompressor();
+    batchExecutor = createBatchExecutor();
+
+    final long cacheSize = maxResultCacheSize();
+    if (cacheSize > 0) {
+      resultCache = new ResultCache(cacheSize);
+    }
+
+    if (collectMetrics()) {
+      metrics =
+          new RpcMetrics(
+              getServletName(), myMethods.keySet(), inFlight, compressor, lanes, limiter);
+      final long slowMillis = slowCallThresholdMillis();
+      if (slowMillis > 0) {
+        metrics.captureSlowCalls(
+            TimeUnit.MILLISECONDS.toNanos(slowMillis),
+            slowCallsPerMethod(),
+            TimeUnit.MILLISECONDS.toNanos(slowCallWindowMillis()),
+            slowCallParamsLength(),
+            gson);
+      }
+      metrics.register(getServletContext());
+
+      if (measureThreadResources()) {
+        threadResources = ThreadResources.create();
+        if (threadResources == null) {
+          getServletContext().log("Thread CPU time and allocation cannot be measured");
+        }
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (metrics != null) {
+      metrics.unregister(getServletContext());
+      metrics = null;
+    }
+    if (batchExecutor != null) {
+      batchExecutor.shutdown();
+      batchExecutor = null;
+    }
+    if (compressor != null) {
+      compressor.clear();
+    }
+    super.destroy();
   }
 
   /**
@@ -152,18 +254,33 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
   /**
    * Initialize the XSRF state for this service.
    *
-   * <p>By default this method creates a unique XSRF key for this service. Service implementors may
-   * wish to override this method to use a pooled instance that relies upon a stable private key.
+   * <p>By default this method creates a unique XSRF key for this service, and remembers recently
+   * verified tokens so repeated calls by a client do not recompute their signatures. If the servlet
+   * has an <code>xsrfKeyRing</code> init parameter, keys are instead loaded from the {@link
+   * FileKeyRingSource} file it names, so that tokens issued by one server are accepted by any other
+   * server sharing the file. Service implementors may wish to override this method to use a pooled
+   * instance that relies upon a stable private key.
    *
    * @return new XSRF implementation. Null if the caller has overridden all relevant XSRF methods
    *     and is implementing their own XSRF protection algorithm.
    * @throws XsrfException the XSRF utility could not be created.
    */
   protected SignedToken createXsrfSignedToken() throws XsrfException {
-    return new SignedToken(4 * 60 * 60 /* seconds */);
+    final int age = 4 * 60 * 60 /* seconds */;
+    final int cacheSize = 4096 /* tokens */;
+    final String keyRing = getInitParameter("xsrfKeyRing");
+    if (keyRing != null) {
+      return new SignedToken(age, new FileKeyRingSource(new File(keyRing)), cacheSize);
+    }
+    return new SignedToken(age, SignedToken.generateRandomKey(), cacheSize);
   }
 
-  /** Create a GsonBuilder to parse a request or return a response. */
+  /**
+   * Create a GsonBuilder to parse a request or return a response.
+   *
+   * <p>Invoked once during {@link #init(ServletConfig)}. The resulting {@link Gson} is shared by
+   * all calls for the lifetime of the servlet, so any adapters registered must be thread-safe.
+   */
   protected GsonBuilder createGsonBuilder() {
     return defaultGsonBuilder();
   }
@@ -206,7 +323,10 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
     return (CallType) new ActiveCall(req, resp);
   }
 
-  /** @return maximum size of a JSON request, in bytes */
+  /**
+   * @return maximum size of a JSON request, in bytes. Methods annotated with {@link MaxRequestSize}
+   *     use their own limit instead.
+   */
   protected int maxRequestSize() {
     // Our default limit of 1 MB should be sufficient for nearly any
     // application. It takes a long time to format this on the client
@@ -215,6 +335,219 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
     return 1 * 1024 * 1024;
   }
 
+  /**
+   * @return maximum number of bytes of request bodies being read at once by this servlet; 0 for no
+   *     limit. Once a request would exceed it, the request is refused with status 503 rather than
+   *     read, so a burst of large uploads cannot exhaust the heap.
+   */
+  protected long maxInFlightRequestBytes() {
+    return Runtime.getRuntime().maxMemory() / 8;
+  }
+
+  /**
+   * @return number of bytes of a response held in memory before it is streamed to the client.
+   *     Responses that fit are sent with a Content-Length; larger responses are sent using chunked
+   *     transfer encoding as they are formatted.
+   */
+  protected int responseBufferSize() {
+    return 32 * 1024;
+  }
+
+  /**
+   * @return approximate number of bytes used to cache the results of methods annotated with {@link
+   *     Cacheable}. Zero disables the cache.
+   */
+  protected long maxResultCacheSize() {
+    return 8 * 1024 * 1024;
+  }
+
+  /**
+   * Create the compressor used for responses to clients that accept gzip.
+   *
+   * <p>Invoked once during {@link #init(ServletConfig)}. Subclasses may override this method to
+   * change the size threshold or compression level.
+   *
+   * @return the compressor; null to never compress responses.
+   */
+  protected ResponseCompressor createResponseCompressor() {
+    return ResponseCompressor.getDefault();
+  }
+
+  /**
+   * Whether to measure the calls handled by this servlet.
+   *
+   * <p>Invoked once during {@link #init(ServletConfig)}. When enabled the measurements are exported
+   * through JMX and served by any {@link MetricsServlet} of the same web application.
+   *
+   * <p>By default calls are measured only if the init parameter <code>collectMetrics</code> is
+   * <code>true</code>.
+   *
+   * @return true to collect {@link RpcMetrics}; false to not measure calls at all.
+   */
+  protected boolean collectMetrics() {
+    return Boolean.parseBoolean(getInitParameter("collectMetrics"));
+  }
+
+  /**
+   * @return calls taking at least this many milliseconds are captured with a breakdown of where
+   *     their time went, and published through {@link RpcMetricsMXBean#getSlowCalls()}; 0 to not
+   *     capture calls. Faster calls cost only a comparison.
+   */
+  protected long slowCallThresholdMillis() {
+    return 1000;
+  }
+
+  /** @return number of slow calls kept for each method; the slowest are kept. */
+  protected int slowCallsPerMethod() {
+    return 10;
+  }
+
+  /** @return milliseconds a slow call is kept, unless displaced by a slower call. */
+  protected long slowCallWindowMillis() {
+    return TimeUnit.MINUTES.toMillis(15);
+  }
+
+  /**
+   * @return number of characters of the parameters, as JSON, kept with a slow call; 0 to keep only
+   *     the size of its request. Parameters may hold private data, so they are not kept by default.
+   */
+  protected int slowCallParamsLength() {
+    return 0;
+  }
+
+  /**
+   * Whether to measure the CPU time and allocation of each call.
+   *
+   * <p>When enabled the thread's CPU time and allocated bytes are read before and after the service
+   * method is invoked and before and after the response is written, and added to the call's
+   * metrics. Work done on other threads, such as by an asynchronous method after it returns, is not
+   * counted. Reading the counters costs around a microsecond per call, so this is off by default.
+   *
+   * @return true to measure CPU time and allocation; ignored unless {@link #collectMetrics()}.
+   */
+  protected boolean measureThreadResources() {
+    return false;
+  }
+
+  /** @return metrics of the calls handled by this servlet; null if they are not collected. */
+  protected RpcMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Create the bulkhead limiting the calls of methods in a {@link Lane}.
+   *
+   * <p>Invoked once per lane during {@link #init(ServletConfig)}. By default the limits are read
+   * from the init parameters <code>lane.NAME.concurrency</code> (default: the number of
+   * processors), <code>lane.NAME.queue</code> (default: the concurrency) and <code>
+   * lane.NAME.maxWaitMillis</code> (default: 1000).
+   *
+   * @param name name of the lane.
+   * @return bulkhead of the lane.
+   * @throws ServletException the lane's parameters are invalid.
+   */
+  protected Bulkhead createLane(final String name) throws ServletException {
+    final int concurrency =
+        intParameter("lane." + name + ".concurrency", Runtime.getRuntime().availableProcessors());
+    final int queue = intParameter("lane." + name + ".queue", concurrency);
+    final int maxWait = intParameter("lane." + name + ".maxWaitMillis", 1000);
+    try {
+      return new Bulkhead(concurrency, queue, maxWait);
+    } catch (IllegalArgumentException e) {
+      throw new ServletException("Invalid lane " + name, e);
+    }
+  }
+
+  /**
+   * Create the limiter adapting the number of requests handled at once to their latency.
+   *
+   * <p>Requests beyond the limit are refused with {@link JsonConstants#ERROR_SERVER_BUSY} before
+   * their body is read. Asynchronous calls count against the limit until their result is sent, so
+   * services that hold calls open for long polls should not enable it.
+   *
+   * <p>By default the limiter is created only if the init parameter <code>adaptiveConcurrency
+   * </code> is <code>true</code>. Its bounds are read from <code>adaptiveConcurrency.initial
+   * </code> (default: 20), <code>adaptiveConcurrency.min</code> (default: the number of processors)
+   * and <code>adaptiveConcurrency.max</code> (default: 1000).
+   *
+   * @return the limiter; null to admit every request.
+   * @throws ServletException the limiter's parameters are invalid.
+   */
+  protected AdaptiveLimiter createConcurrencyLimiter() throws ServletException {
+    if (!Boolean.parseBoolean(getInitParameter("adaptiveConcurrency"))) {
+      return null;
+    }
+    final int min =
+        intParameter("adaptiveConcurrency.min", Runtime.getRuntime().availableProcessors());
+    final int max = intParameter("adaptiveConcurrency.max", 1000);
+    final int initial = intParameter("adaptiveConcurrency.initial", 20);
+    try {
+      return new AdaptiveLimiter(initial, min, max);
+    } catch (IllegalArgumentException e) {
+      throw new ServletException("Invalid adaptiveConcurrency", e);
+    }
+  }
+
+  private int intParameter(final String name, final int defaultValue) throws ServletException {
+    final String v = getInitParameter(name);
+    if (v == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(v.trim());
+    } catch (NumberFormatException e) {
+      throw new ServletException("Invalid " + name + ": " + v, e);
+    }
+  }
+
+  /** @return maximum number of calls accepted in a single JSON-RPC 2.0 batch request. */
+  protected int maxBatchSize() {
+    return 100;
+  }
+
+  /**
+   * Create the executor that runs the calls of a JSON-RPC 2.0 batch request.
+   *
+   * <p>Invoked once during {@link #init(ServletConfig)} and shut down by {@link #destroy()}. The
+   * first call of each batch always runs on the request's own thread; the remaining calls are
+   * submitted to this executor so they run in parallel. If the executor rejects a call it runs on
+   * the request's thread instead.
+   *
+   * <p>By default a pool of one thread per processor is used, with a short queue, so that a few
+   * large batches cannot tie up an unbounded number of threads.
+   *
+   * @return the executor for batch calls.
+   */
+  protected ExecutorService createBatchExecutor() {
+    final int n = Runtime.getRuntime().availableProcessors();
+    final String name = getServletName() + "-batch-";
+    final ThreadPoolExecutor pool =
+        new ThreadPoolExecutor(
+            n,
+            n,
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(4 * n),
+            new ThreadFactory() {
+              private final AtomicInteger next = new AtomicInteger();
+
+              @Override
+              public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, name + next.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+              }
+            },
+            new RejectedExecutionHandler() {
+              @Override
+              public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+                r.run();
+              }
+            });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
   /**
    * Invoked just before the service method is invoked.
    *
@@ -248,36 +581,296 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
       final CallType call = createActiveCall(req, resp);
       call.xsrf = xsrf;
 
-      call.noCache();
       if (!acceptJSON(call)) {
+        call.noCache();
         textError(call, SC_BAD_REQUEST, "Must Accept " + JsonConstants.JSON_TYPE);
         return;
       }
 
       perThreadCall.set(call);
-      doService(call);
+      if (metrics != null) {
+        call.stats = metrics.start();
+      }
+      call.sendResponse =
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                sendResponse(call);
+              } catch (IOException | RuntimeException e) {
+                getServletContext().log("Cannot send response", e);
+              }
+            }
+          };
+      if (limiter != null) {
+        if (!limiter.acquire()) {
+          // Shed the request before its body is read; the
+          // protocol version is unknown so reply in 1.1 form.
+          //
+          refuseBusy(call);
+          sendResponse(call);
+          return;
+        }
+        call.holdAdmission(limiter);
+      }
+      try {
+        doService(call);
+      } catch (IOException | RuntimeException e) {
+        finish(call);
+        throw e;
+      }
 
-      if (call.internalFailure != null) {
-        // Hide internal errors from the client.
+      if (call.batch != null) {
+        serviceBatch(call);
+        return;
+      }
+      if (call.isAsync()) {
+        // The response is sent once the result has been supplied,
+        // possibly by this thread if that has already happened.
         //
-        final String msg = "Error in " + call.method.getName();
-        getServletContext().log(msg, call.internalFailure);
-        call.onFailure(new Exception("Internal Server Error"));
-      }
-
-      final String out = formatResult(call);
-      RPCServletUtils.writeResponse(
-          getServletContext(),
-          call.httpResponse,
-          out,
-          call.callback == null
-              && out.length() > 256
-              && RPCServletUtils.acceptsGzipEncoding(call.httpRequest));
+        call.release();
+        return;
+      }
+      sendResponse(call);
     } finally {
       perThreadCall.set(null);
     }
   }
 
+  private void sendResponse(final CallType call) throws IOException {
+    try {
+      hideInternalFailure(call);
+      setCacheHeaders(call);
+
+      if (isConditional(call)) {
+        final String etag = RPCServletUtils.entityTag(resultJson(call));
+        call.httpResponse.setHeader("ETag", etag);
+        if (RPCServletUtils.notModified(call.httpRequest, etag)) {
+          call.httpResponse.setStatus(SC_NOT_MODIFIED);
+          return;
+        }
+      }
+
+      if (call.stats != null) {
+        call.stats.responseStarting(threadResources);
+      }
+      final ResponseOutputStream out =
+          new ResponseOutputStream(
+              getServletContext(),
+              call.httpResponse,
+              call.callback == null && RPCServletUtils.acceptsGzipEncoding(call.httpRequest)
+                  ? compressor
+                  : null,
+              responseBufferSize());
+      try {
+        formatResult(call, out);
+        out.close();
+      } finally {
+        out.abort();
+      }
+      if (call.stats != null) {
+        call.stats.responseWritten(out.size(), out.compression(), threadResources);
+      }
+    } finally {
+      finish(call);
+    }
+  }
+
+  /** Record the measurements of a request once its response has been sent. */
+  private void finish(final ActiveCall call) {
+    call.releaseAdmission(
+        (call.method != null || call.batch != null)
+            && !(call.externalFailure instanceof ServerBusyException));
+    final RpcMetrics m = metrics;
+    if (m != null && call.stats != null) {
+      m.finish(call);
+      call.stats = null;
+    }
+  }
+
+  /**
+   * Mark the response as uncacheable, unless it is the successful result of a GET of a method whose
+   * {@link CachePolicy} permits caching.
+   */
+  private static void setCacheHeaders(final ActiveCall call) {
+    final String cacheControl =
+        "GET".equals(call.httpRequest.getMethod())
+                && call.externalFailure == null
+                && call.method != null
+            ? call.method.getCacheControl()
+            : null;
+    if (cacheControl != null) {
+      call.httpResponse.setHeader("Cache-Control", cacheControl);
+      call.httpResponse.setHeader("Vary", call.method.getVary());
+    } else {
+      call.noCache();
+    }
+  }
+
+  /**
+   * Successful JSON-RPC 2.0 calls made over GET to methods tagged with {@link ConditionalGet} carry
+   * an entity tag computed from their result, so a client polling for an unchanged result receives
+   * 304 Not Modified instead of the result.
+   */
+  private static boolean isConditional(final ActiveCall call) {
+    return "GET".equals(call.httpRequest.getMethod())
+        && "jsonrpc".equals(call.versionName)
+        && call.callback == null
+        && call.externalFailure == null
+        && call.method != null
+        && call.method.isConditional();
+  }
+
+  private void hideInternalFailure(final ActiveCall call) {
+    if (call.internalFailure != null) {
+      // Hide internal errors from the client. The call may have
+      // failed before its method was resolved.
+      //
+      final String msg =
+          call.method != null ? "Error in " + call.method.getName() : "Error in request";
+      getServletContext().log(msg, call.internalFailure);
+      call.internalFailure = null;
+      call.externalFailure = new Exception("Internal Server Error");
+    }
+  }
+
+  /**
+   * Run the calls of a batch request and send their combined response.
+   *
+   * <p>This thread waits until every call has been dispatched. If some have gone asynchronous the
+   * request is put into asynchronous mode and the response is sent by whichever call completes
+   * last.
+   */
+  @SuppressWarnings("unchecked")
+  private void serviceBatch(final CallType call) {
+    final List<CallType> entries = (List<CallType>) (List<?>) call.batch;
+    final AtomicInteger pending = new AtomicInteger(entries.size() + 1);
+    final AsyncContext[] ctx = new AsyncContext[1];
+    final Runnable entryDone =
+        new Runnable() {
+          @Override
+          public void run() {
+            if (pending.decrementAndGet() == 0) {
+              try {
+                sendBatchResponse(call, entries);
+              } catch (IOException | RuntimeException e) {
+                getServletContext().log("Cannot send response", e);
+              } finally {
+                if (ctx[0] != null) {
+                  ctx[0].complete();
+                }
+              }
+            }
+          }
+        };
+
+    final CountDownLatch dispatched = new CountDownLatch(entries.size());
+    for (int i = 1; i < entries.size(); i++) {
+      final CallType e = entries.get(i);
+      e.sendResponse = entryDone;
+      batchExecutor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                dispatch(e);
+              } finally {
+                dispatched.countDown();
+              }
+            }
+          });
+    }
+    final CallType first = entries.get(0);
+    first.sendResponse = entryDone;
+    try {
+      dispatch(first);
+    } finally {
+      dispatched.countDown();
+    }
+
+    boolean interrupted = false;
+    for (; ; ) {
+      try {
+        dispatched.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    if (pending.get() > 1) {
+      ctx[0] = ActiveCall.startAsync(call.httpRequest, call.httpResponse, entries);
+    }
+    entryDone.run();
+  }
+
+  /** Invoke one call of a batch, on the current thread. */
+  private void dispatch(final CallType call) {
+    final ActiveCall prior = perThreadCall.get();
+    perThreadCall.set(call);
+    try {
+      if (!call.isComplete()) {
+        invoke(call);
+      }
+    } catch (RuntimeException e) {
+      call.onInternalFailure(e);
+    } finally {
+      perThreadCall.set(prior);
+    }
+
+    if (call.isAsync()) {
+      call.release();
+    } else {
+      call.sendResponse.run();
+    }
+  }
+
+  private void sendBatchResponse(final CallType call, final List<CallType> entries)
+      throws IOException {
+    try {
+      call.noCache();
+      if (call.stats != null) {
+        call.stats.responseStarting(threadResources);
+      }
+      final ResponseOutputStream out =
+          new ResponseOutputStream(
+              getServletContext(),
+              call.httpResponse,
+              RPCServletUtils.acceptsGzipEncoding(call.httpRequest) ? compressor : null,
+              responseBufferSize());
+      try {
+        final JsonWriter o = newJsonWriter(new OutputStreamWriter(out, ENC));
+        o.beginArray();
+        for (final CallType e : entries) {
+          hideInternalFailure(e);
+          formatEnvelope(e, o);
+        }
+        o.endArray();
+        o.flush();
+        out.close();
+      } finally {
+        out.abort();
+      }
+      if (call.stats != null) {
+        call.stats.responseWritten(out.size(), out.compression(), threadResources);
+      }
+    } finally {
+      final RpcMetrics m = metrics;
+      if (m != null) {
+        for (final CallType e : entries) {
+          if (e.stats != null) {
+            m.record(e);
+            e.stats = null;
+          }
+        }
+      }
+      finish(call);
+    }
+  }
+
   private boolean acceptJSON(final CallType call) {
     final String accepts = call.httpRequest.getHeader("Accept");
     if (accepts == null) {
@@ -297,24 +890,20 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
     // even though our AJAX handler wouldn't be able to actually use
     // the data. The common case for these is to start with our own
     // type, then others, so we special case it before we go through
-    // the expense of splitting the Accepts header up.
+    // the expense of scanning the Accepts header.
     //
     if (accepts.startsWith(JsonConstants.JSON_TYPE + ",")) {
       return true;
     }
-    final String[] parts = accepts.split("[ ,;][ ,;]*");
-    for (final String p : parts) {
-      if (JsonConstants.JSON_TYPE.equals(p)) {
-        return true;
-      }
-    }
 
-    // Assume the client is busted and won't take JSON back.
+    // If JSON isn't listed, or has a quality of 0, assume the client
+    // is busted and won't take JSON back.
     //
-    return false;
+    return HeaderScanner.quality(accepts, JsonConstants.JSON_TYPE) > 0;
   }
 
   private void doService(final CallType call) throws IOException {
+    final long parseStart = call.stats != null ? System.nanoTime() : 0;
     try {
       try {
         if ("GET".equals(call.httpRequest.getMethod())) {
@@ -338,19 +927,25 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
           return;
         }
       } catch (JsonParseException err) {
-        if (err.getCause() instanceof NoSuchRemoteMethodException) {
-          // GSON seems to catch our own exception and wrap it...
-          //
-          throw (NoSuchRemoteMethodException) err.getCause();
-        }
         call.httpResponse.setStatus(SC_BAD_REQUEST);
         call.onFailure(new Exception("Error parsing request", err));
         return;
+      } catch (InFlightBytes.ExhaustedException err) {
+        refuseBusy(call);
+        return;
       }
     } catch (NoSuchRemoteMethodException err) {
       call.httpResponse.setStatus(SC_NOT_FOUND);
       call.onFailure(new Exception("No such service method"));
       return;
+    } finally {
+      if (call.stats != null) {
+        call.stats.add(RpcMetrics.Phase.PARSE, parseStart);
+      }
+    }
+
+    if (call.batch != null) {
+      return;
     }
 
     if (call.callback != null && !SAFE_CALLBACK.matcher(call.callback).matches()) {
@@ -359,44 +954,131 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
       return;
     }
 
+    invoke(call);
+  }
+
+  /** Check the XSRF token of a parsed call, then invoke its method. */
+  private void invoke(final CallType call) {
+    final long xsrfStart = call.stats != null ? System.nanoTime() : 0;
     try {
       call.xsrfValid = xsrfValidate(call);
     } catch (XsrfException e) {
       getServletContext().log("Unexpected XSRF validation error", e);
       call.xsrfValid = false;
+    } finally {
+      if (call.stats != null) {
+        call.stats.add(RpcMetrics.Phase.XSRF, xsrfStart);
+      }
     }
     if (!call.method.allowCrossSiteRequest() && !call.requireXsrfValid()) {
       return;
     }
 
     preInvoke(call);
-    if (!call.isComplete()) {
-      call.method.invoke(call.params, call);
+    if (call.isComplete() || fromCache(call) || !enterLane(call)) {
+      return;
+    }
+    try {
+      final ThreadResources r = call.stats != null ? threadResources : null;
+      if (call.stats != null) {
+        call.stats.invoking();
+      }
+      if (r != null) {
+        final CallStats stats = call.stats;
+        stats.workStarting(r);
+        call.method.invoke(call.params, call);
+        stats.workDone(r);
+      } else {
+        call.method.invoke(call.params, call);
+      }
+    } finally {
+      if (!call.isAsync()) {
+        call.releaseLane();
+      }
+    }
+  }
+
+  /**
+   * Admit a call to its method's lane.
+   *
+   * <p>An asynchronous call keeps its slot until its result is supplied; any other call returns it
+   * once the method returns.
+   *
+   * @return true if the call may run; false if the lane is full and the call was refused.
+   */
+  private boolean enterLane(final CallType call) {
+    final Bulkhead lane = lanes.get(call.method.getLane());
+    if (lane == null) {
+      return true;
+    }
+    if (!lane.acquire()) {
+      refuseBusy(call);
+      return false;
+    }
+    call.holdLane(lane);
+    return true;
+  }
+
+  /** Fail a call the server is too busy to run, inviting the client to retry shortly. */
+  private static void refuseBusy(final ActiveCall call) {
+    call.httpResponse.setStatus(SC_SERVICE_UNAVAILABLE);
+    call.httpResponse.setHeader("Retry-After", "1");
+    call.onFailure(new ServerBusyException());
+  }
+
+  /**
+   * Answer a call from the result cache, if its method permits.
+   *
+   * <p>On a miss the call remembers its cache key, and its result is cached as it is written.
+   *
+   * @return true if the call was completed from the cache.
+   */
+  private boolean fromCache(final CallType call) {
+    final Cacheable c = call.method.getCacheable();
+    if (c == null || resultCache == null) {
+      return false;
     }
+
+    final StringBuilder k = new StringBuilder();
+    k.append(call.method.getName()).append('\0');
+    if (!c.shared()) {
+      final String user = call.getUser();
+      k.append(user != null ? "user/" + user : "anonymous");
+    }
+    k.append('\0').append(gson.toJson(call.params));
+    final String key = k.toString();
+
+    final ResultCache.Entry e = resultCache.get(key);
+    if (e != null) {
+      call.onSuccess(e);
+      return true;
+    }
+    call.cacheKey = key;
+    return false;
   }
 
-  private void parseGetRequest(final CallType call) {
+  private void parseGetRequest(final CallType call) throws IOException {
     final HttpServletRequest req = call.httpRequest;
 
     if ("2.0".equals(req.getParameter("jsonrpc"))) {
-      final JsonObject d = new JsonObject();
-      d.addProperty("jsonrpc", "2.0");
-      d.addProperty("method", req.getParameter("method"));
-      d.addProperty("id", req.getParameter("id"));
+      final String params;
       try {
-        final byte[] params = req.getParameter("params").getBytes("ISO-8859-1");
-        final String p = new String(Base64.decodeBase64(params), "UTF-8");
-        d.add("params", new JsonParser().parse(p));
+        final String p = req.getParameter("params");
+        params =
+            p != null ? new String(Base64.decodeBase64(p.getBytes("ISO-8859-1")), "UTF-8") : null;
       } catch (UnsupportedEncodingException e) {
         throw new JsonParseException("Cannot parse params", e);
       }
 
       try {
-        final GsonBuilder gb = createGsonBuilder();
-        gb.registerTypeAdapter(
-            ActiveCall.class, //
-            new CallDeserializer<>(call, this));
-        gb.create().fromJson(d, ActiveCall.class);
+        try {
+          new CallDeserializer<>(call, this)
+              .readGet(req.getParameter("method"), req.getParameter("id"), params);
+        } catch (IOException e) {
+          // Only malformed JSON can fail when reading from a String.
+          //
+          throw new JsonSyntaxException(e);
+        }
       } catch (JsonParseException err) {
         call.method = null;
         call.params = null;
@@ -405,8 +1087,8 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
 
     } else {
       /* JSON-RPC 1.1 */
-      final Gson gs = createGsonBuilder().create();
-
+      call.versionName = "version";
+      call.versionValue = new JsonPrimitive("1.1");
       call.method = lookupMethod(req.getParameter("method"));
       if (call.method == null) {
         throw new NoSuchRemoteMethodException();
@@ -423,12 +1105,12 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
         } else if (paramTypes[i] instanceof Class<?> && ((Class<?>) paramTypes[i]).isPrimitive()) {
           // Primitive type, use the JSON representation of that type.
           //
-          r[i] = gs.fromJson(v, paramTypes[i]);
+          r[i] = call.method.parseParam(i, v);
         } else {
           // Assume it is like a java.sql.Timestamp or something and treat
           // the value as JSON string.
           //
-          r[i] = gs.fromJson(gs.toJson(v), paramTypes[i]);
+          r[i] = call.method.bindParam(i, new JsonPrimitive(v));
         }
       }
       call.params = r;
@@ -437,26 +1119,37 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
   }
 
   private static boolean isBodyJson(final ActiveCall call) {
-    String type = call.httpRequest.getContentType();
-    if (type == null) {
-      return false;
-    }
-    int semi = type.indexOf(';');
-    if (semi >= 0) {
-      type = type.substring(0, semi).trim();
-    }
-    return JsonConstants.JSON_TYPE.equals(type);
+    final String type = call.httpRequest.getContentType();
+    return type != null && HeaderScanner.isMediaType(type, JsonConstants.JSON_TYPE);
   }
 
   private static boolean isBodyUTF8(final ActiveCall call) {
-    String enc = call.httpRequest.getCharacterEncoding();
-    if (enc == null) {
-      enc = "";
+    final String enc = call.httpRequest.getCharacterEncoding();
+    return enc != null && HeaderScanner.containsIgnoreCase(enc, JsonConstants.JSON_ENC);
+  }
+
+  /** @return true if the body is gzip compressed; false if it is not compressed. */
+  private static boolean isBodyGzip(final ActiveCall call) {
+    final String enc = call.httpRequest.getHeader("Content-Encoding");
+    if (enc == null || HeaderScanner.is(enc, "") || HeaderScanner.is(enc, "identity")) {
+      return false;
+    }
+    if (HeaderScanner.is(enc, "gzip") || HeaderScanner.is(enc, "x-gzip")) {
+      return true;
     }
-    return enc.toLowerCase().contains(JsonConstants.JSON_ENC.toLowerCase());
+    throw new JsonParseException("Invalid Request Content-Encoding");
   }
 
-  private String readBody(final ActiveCall call) throws IOException {
+  /**
+   * Open the body of a POST request for streaming.
+   *
+   * <p>The request headers are checked before any of the body is read. The returned reader decodes
+   * the body as it is consumed, failing if it is not valid UTF-8. A gzip compressed body is
+   * decompressed as it is read. A body without a <code>Content-Length</code>, such as one sent with
+   * chunked transfer encoding, is accepted; size limits are enforced as the body is read, on both
+   * the compressed and the decompressed size.
+   */
+  private Reader openBody(final ActiveCall call) throws IOException {
     if (!isBodyJson(call)) {
       throw new JsonParseException("Invalid Request Content-Type");
     }
@@ -464,114 +1157,249 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
       throw new JsonParseException("Invalid Request Character-Encoding");
     }
 
-    final int len = call.httpRequest.getContentLength();
-    if (len < 0) {
-      throw new JsonParseException("Invalid Request Content-Length");
-    }
+    final long len = call.httpRequest.getContentLengthLong();
     if (len == 0) {
       throw new JsonParseException("Invalid Request POST Body Required");
     }
-    if (len > maxRequestSize()) {
+    if (len > bodyLimit) {
       throw new JsonParseException("Invalid Request POST Body Too Large");
     }
+    if (len > 0 && inFlight != null && !inFlight.hasRoom(len)) {
+      throw new InFlightBytes.ExhaustedException();
+    }
 
-    final InputStream in = call.httpRequest.getInputStream();
+    final boolean gzip = isBodyGzip(call);
+    InputStream in = call.httpRequest.getInputStream();
     if (in == null) {
       throw new JsonParseException("Invalid Request POST Body Required");
     }
-
-    try {
-      final byte[] body = new byte[len];
-      int off = 0;
-      while (off < len) {
-        final int n = in.read(body, off, len - off);
-        if (n <= 0) {
-          throw new JsonParseException("Invalid Request Incomplete Body");
-        }
-        off += n;
+    if (gzip) {
+      final BoundedInputStream wire = new BoundedInputStream(in, bodyLimit);
+      if (call.stats != null) {
+        call.stats.wire = wire;
       }
+      in = new GZIPInputStream(wire);
+    }
+    call.body = new BoundedInputStream(in, bodyLimit, inFlight);
+    return Utf8Reader.open(call.body);
+  }
 
-      final CharsetDecoder d = Charset.forName(JsonConstants.JSON_ENC).newDecoder();
-      d.onMalformedInput(CodingErrorAction.REPORT);
-      d.onUnmappableCharacter(CodingErrorAction.REPORT);
-      try {
-        return d.decode(ByteBuffer.wrap(body)).toString();
-      } catch (CharacterCodingException e) {
-        throw new JsonParseException("Invalid Request Not UTF-8", e);
-      }
-    } finally {
-      in.close();
+  /**
+   * Apply the size limit of a call's method to the body being read.
+   *
+   * <p>Until the method is known the body is allowed to grow to the largest limit of any method.
+   *
+   * @throws IOException more of the body has already been read than the method permits.
+   */
+  void limitRequestSize(final ActiveCall call) throws IOException {
+    if (call.body != null) {
+      final int max = call.method != null ? call.method.getMaxRequestSize() : 0;
+      call.body.limit(max > 0 ? max : maxRequestSize());
     }
   }
 
-  private void parsePostRequest(final CallType call)
-      throws UnsupportedEncodingException, IOException {
+  private void parsePostRequest(final CallType call) throws IOException {
     try {
-      final GsonBuilder gb = createGsonBuilder();
-      gb.registerTypeAdapter(ActiveCall.class, new CallDeserializer<>(call, this));
-      gb.create().fromJson(readBody(call), ActiveCall.class);
-    } catch (JsonParseException err) {
+      try (Reader body = openBody(call)) {
+        final JsonReader in = new JsonReader(body);
+        in.setLenient(true);
+        if (in.peek() == JsonToken.BEGIN_ARRAY) {
+          limitRequestSize(call);
+          call.batch = readBatch(call, in);
+        } else {
+          new CallDeserializer<>(call, this).read(in);
+        }
+        if (in.peek() != JsonToken.END_DOCUMENT) {
+          throw new JsonParseException("Invalid Request Trailing Data");
+        }
+      } catch (CharacterCodingException e) {
+        throw new JsonParseException("Invalid Request Not UTF-8", e);
+      } catch (ZipException e) {
+        throw new JsonParseException("Invalid Request Not Gzip", e);
+      } catch (BoundedInputStream.LimitExceededException e) {
+        throw new JsonParseException("Invalid Request POST Body Too Large", e);
+      } catch (MalformedJsonException | EOFException e) {
+        throw new JsonSyntaxException(e);
+      } finally {
+        if (call.stats != null && call.body != null) {
+          call.stats.requestRead(call.body);
+        }
+        call.body = null;
+      }
+    } catch (JsonParseException | InFlightBytes.ExhaustedException err) {
       call.method = null;
       call.params = null;
+      call.batch = null;
       throw err;
     }
   }
 
-  private String formatResult(final ActiveCall call)
-      throws UnsupportedEncodingException, IOException {
-    final GsonBuilder gb = createGsonBuilder();
-    gb.registerTypeAdapter(
-        call.getClass(),
-        new JsonSerializer<ActiveCall>() {
-          @Override
-          public JsonElement serialize(
-              final ActiveCall src, final Type typeOfSrc, final JsonSerializationContext context) {
-            if (call.callback != null) {
-              if (src.externalFailure != null) {
-                return JsonNull.INSTANCE;
-              }
-              return context.serialize(src.result);
-            }
+  /**
+   * Read the calls of a JSON-RPC 2.0 batch request.
+   *
+   * <p>Each call is read as a tree so that an invalid call can be answered with its own error while
+   * the rest of the batch is still processed. Only a request that is not well formed JSON fails the
+   * batch as a whole.
+   */
+  private List<ActiveCall> readBatch(final CallType call, final JsonReader in) throws IOException {
+    call.versionName = "jsonrpc";
+    call.versionValue = new JsonPrimitive("2.0");
+
+    final HttpServletResponse rsp = new BatchResponse(call.httpResponse);
+    final List<ActiveCall> entries = new ArrayList<>();
+    in.beginArray();
+    while (in.hasNext()) {
+      if (entries.size() == maxBatchSize()) {
+        throw new JsonParseException("Expected at most " + maxBatchSize() + " calls in batch");
+      }
+      final JsonElement json = CallDeserializer.readTree(in);
+      final CallType e = createActiveCall(call.httpRequest, rsp);
+      e.xsrf = xsrf;
+      e.batchEntry = true;
+      if (call.stats != null) {
+        e.stats = new CallStats(System.nanoTime());
+      }
+      readBatchEntry(e, json);
+      entries.add(e);
+    }
+    in.endArray();
 
-            final JsonObject r = new JsonObject();
-            r.add(src.versionName, src.versionValue);
-            if (src.id != null) {
-              r.add("id", src.id);
-            }
-            if (src.xsrfKeyOut != null) {
-              r.addProperty("xsrfKey", src.xsrfKeyOut);
-            }
-            if (src.externalFailure != null) {
-              final JsonObject error = new JsonObject();
-              if ("jsonrpc".equals(src.versionName)) {
-                final int code = to2_0ErrorCode(src);
-
-                error.addProperty("code", code);
-                error.addProperty("message", src.externalFailure.getMessage());
-              } else {
-                error.addProperty("name", "JSONRPCError");
-                error.addProperty("code", 999);
-                error.addProperty("message", src.externalFailure.getMessage());
-              }
-              r.add("error", error);
-            } else {
-              r.add("result", context.serialize(src.result));
-            }
-            return r;
-          }
-        });
+    if (entries.isEmpty()) {
+      throw new JsonParseException("Expected at least one call in batch");
+    }
+    return entries;
+  }
 
-    final StringWriter o = new StringWriter();
-    if (call.callback != null) {
-      o.write(call.callback);
-      o.write("(");
+  private void readBatchEntry(final CallType call, final JsonElement json) {
+    final long parseStart = call.stats != null ? call.stats.start : 0;
+    try {
+      try {
+        new CallDeserializer<>(call, this).read(json);
+        if (!"jsonrpc".equals(call.versionName)) {
+          throw new JsonParseException("Expected jsonrpc=2.0");
+        }
+        if (call.callback != null) {
+          throw new JsonParseException("Unexpected callback in batch");
+        }
+      } catch (JsonParseException err) {
+        call.method = null;
+        call.params = null;
+        call.onFailure(new Exception("Error parsing request", err));
+      }
+    } catch (NoSuchRemoteMethodException err) {
+      call.onFailure(new Exception("No such service method"));
+    }
+
+    if (call.isComplete()) {
+      call.versionName = "jsonrpc";
+      call.versionValue = new JsonPrimitive("2.0");
     }
-    gb.create().toJson(call, o);
+    if (call.stats != null) {
+      call.stats.add(RpcMetrics.Phase.PARSE, parseStart);
+    }
+  }
+
+  private void formatResult(final ActiveCall call, final OutputStream out) throws IOException {
+    final Writer w = new OutputStreamWriter(out, ENC);
+    final JsonWriter o = newJsonWriter(w);
+
     if (call.callback != null) {
-      o.write(");");
+      w.write(call.callback);
+      w.write("(");
+      if (call.externalFailure != null) {
+        gson.toJson(JsonNull.INSTANCE, o);
+      } else {
+        writeResult(call, o);
+      }
+      o.flush();
+      w.write(");");
+      w.flush();
+      return;
     }
-    o.close();
-    return o.toString();
+
+    formatEnvelope(call, o);
+    o.flush();
+  }
+
+  private JsonWriter newJsonWriter(final Writer w) throws IOException {
+    final JsonWriter o = gson.newJsonWriter(w);
+    // Results are written by their adapters directly, rather than through
+    // Gson.toJson(), so apply the settings it would have used.
+    //
+    o.setHtmlSafe(gson.htmlSafe());
+    o.setLenient(true);
+    return o;
+  }
+
+  private void formatEnvelope(final ActiveCall call, final JsonWriter o) throws IOException {
+    o.beginObject();
+    if (call.versionName != null) {
+      o.name(call.versionName);
+      gson.toJson(call.versionValue, o);
+    }
+    if (call.id != null) {
+      o.name("id");
+      gson.toJson(call.id, o);
+    }
+    if (call.xsrfKeyOut != null) {
+      o.name("xsrfKey").value(call.xsrfKeyOut);
+    }
+    if (call.externalFailure != null) {
+      o.name("error").beginObject();
+      if ("jsonrpc".equals(call.versionName)) {
+        o.name("code").value(to2_0ErrorCode(call));
+        o.name("message").value(call.externalFailure.getMessage());
+      } else {
+        o.name("name").value("JSONRPCError");
+        o.name("code").value(999);
+        o.name("message").value(call.externalFailure.getMessage());
+      }
+      o.endObject();
+    } else {
+      o.name("result");
+      writeResult(call, o);
+    }
+    o.endObject();
+  }
+
+  private void writeResult(final ActiveCall call, final JsonWriter o) throws IOException {
+    if (call.resultJson != null
+        || call.result instanceof ResultCache.Entry
+        || call.cacheKey != null) {
+      o.jsonValue(resultJson(call));
+    } else if (call.method != null) {
+      call.method.writeResult(call.result, o);
+    } else {
+      MethodHandle.writeValue(gson, call.result, o);
+    }
+  }
+
+  /**
+   * Serialize the result of a successful call, caching the text if the method permits.
+   *
+   * @return the JSON text of the result.
+   */
+  private String resultJson(final ActiveCall call) throws IOException {
+    if (call.resultJson == null) {
+      if (call.result instanceof ResultCache.Entry) {
+        call.resultJson = ((ResultCache.Entry) call.result).json;
+      } else {
+        final StringWriter json = new StringWriter();
+        final JsonWriter o = newJsonWriter(json);
+        if (call.method != null) {
+          call.method.writeResult(call.result, o);
+        } else {
+          MethodHandle.writeValue(gson, call.result, o);
+        }
+        o.flush();
+        call.resultJson = json.toString();
+
+        if (call.cacheKey != null) {
+          resultCache.put(call.cacheKey, call.resultJson, call.method.getCacheable().maxAge());
+        }
+      }
+    }
+    return call.resultJson;
   }
 
   private int to2_0ErrorCode(final ActiveCall src) {
@@ -584,6 +1412,9 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
     if (e instanceof JsonParseException || i instanceof JsonParseException) {
       return -32700 /* Parse error. */;
     }
+    if (e instanceof ServerBusyException) {
+      return -32000 /* Server error: busy. */;
+    }
 
     return -32603 /* Internal error. */;
   }
@@ -602,7 +1433,7 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
     }
   }
 
-  private static Map<String, MethodHandle> methods(final RemoteJsonService impl) {
+  private static Map<String, MethodHandle> methods(final RemoteJsonService impl, final Gson gson) {
     final Class<? extends RemoteJsonService> d = findInterface(impl.getClass());
     if (d == null) {
       return Collections.<String, MethodHandle>emptyMap();
@@ -627,7 +1458,7 @@ public abstract class JsonServlet<CallType extends ActiveCall> extends HttpServl
         continue;
       }
 
-      final MethodHandle h = new MethodHandle(impl, m);
+      final MethodHandle h = new MethodHandle(impl, m, gson);
       r.put(h.getName(), h);
     }
     return Collections.unmodifiableMap(r);
@@ -0,0 +1,136 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Keys used by a {@link SignedToken} to sign and verify tokens.
+ *
+ * <p>New tokens are signed with the primary key, and carry its id so any server holding the same
+ * ring can select the key to verify them. Keys can be rotated by adding a new key, making it the
+ * primary once every server has it, and removing the old key once its tokens have expired.
+ */
+public final class KeyRing {
+  private static final Pattern KEY_ID = Pattern.compile("^[A-Za-z0-9_-]{1,32}$");
+
+  /** A key of the ring. */
+  static final class Key {
+    /** Identity of the key within tokens; null if tokens signed with it carry no id. */
+    final String id;
+
+    final SecretKeySpec spec;
+
+    Key(final String id, final SecretKeySpec spec) {
+      this.id = id;
+      this.spec = spec;
+    }
+  }
+
+  /**
+   * Create a ring holding a single key, whose tokens do not carry a key id.
+   *
+   * @param keyBase64 base 64 encoded representation of the key.
+   * @param algorithm MAC algorithm the key is used with.
+   */
+  static KeyRing single(final String keyBase64, final String algorithm) throws XsrfException {
+    final KeyRing r = new KeyRing();
+    r.primary = new Key(null, decode(keyBase64, algorithm));
+    return r;
+  }
+
+  private final Key[] keys;
+  private Key primary;
+
+  private KeyRing() {
+    keys = new Key[0];
+  }
+
+  /**
+   * Create a ring of keys.
+   *
+   * @param primaryId id of the key to sign new tokens with.
+   * @param keysBase64 base 64 encoded representation of each key, by id. Ids may only contain
+   *     letters, digits, '-' and '_'.
+   * @throws XsrfException an id or a key is not valid, or the primary key is not in the ring.
+   */
+  public KeyRing(final String primaryId, final Map<String, String> keysBase64)
+      throws XsrfException {
+    final List<Key> r = new ArrayList<>(keysBase64.size());
+    for (final Map.Entry<String, String> e : keysBase64.entrySet()) {
+      final String id = e.getKey();
+      if (id == null || !KEY_ID.matcher(id).matches()) {
+        throw new XsrfException("Invalid key id \"" + id + "\"");
+      }
+      final Key k = new Key(id, decode(e.getValue(), SignedToken.MAC_ALG));
+      if (id.equals(primaryId)) {
+        primary = k;
+      }
+      r.add(k);
+    }
+    keys = r.toArray(new Key[r.size()]);
+    if (primary == null) {
+      throw new XsrfException("Primary key \"" + primaryId + "\" not in key ring");
+    }
+  }
+
+  /** @return the key new tokens are signed with. */
+  Key primary() {
+    return primary;
+  }
+
+  /**
+   * Find the key a token was signed with.
+   *
+   * @param token the token string, starting with the key id.
+   * @param end index of the end of the key id in the token; -1 if the token carries no id.
+   * @return the key; null if there is no such key. Tokens carrying no id use the primary key, so
+   *     tokens signed before a single key was moved into a ring remain valid.
+   */
+  Key get(final String token, final int end) {
+    if (end < 0) {
+      return primary;
+    }
+    for (final Key k : keys) {
+      if (k.id.length() == end && token.startsWith(k.id)) {
+        return k;
+      }
+    }
+    return null;
+  }
+
+  private static SecretKeySpec decode(final String keyBase64, final String algorithm)
+      throws XsrfException {
+    final byte[] k =
+        keyBase64 != null ? new Base64(0, null, true).decode(toBytes(keyBase64)) : null;
+    if (k == null || k.length == 0) {
+      throw new XsrfException("Empty private key");
+    }
+    return new SecretKeySpec(k, algorithm);
+  }
+
+  private static byte[] toBytes(final String s) {
+    final byte[] r = new byte[s.length()];
+    for (int k = r.length - 1; k >= 0; k--) {
+      r[k] = (byte) s.charAt(k);
+    }
+    return r;
+  }
+}
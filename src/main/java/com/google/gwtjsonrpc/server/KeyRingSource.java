@@ -0,0 +1,30 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+/**
+ * Supplies the current {@link KeyRing} of a {@link SignedToken}.
+ *
+ * <p>The source is consulted each time a token is signed or checked, so it must be cheap to call; a
+ * source that loads keys from elsewhere should cache them, and may return a new ring when the keys
+ * are rotated.
+ */
+public interface KeyRingSource {
+  /**
+   * @return the current keys.
+   * @throws XsrfException the keys are not available.
+   */
+  KeyRing get() throws XsrfException;
+}
@@ -0,0 +1,110 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations, in fixed buckets.
+ *
+ * <p>Bucket bounds follow a 1-2-5 series from 10 microseconds to 50 seconds, with one more bucket
+ * for anything slower. Recording is a bucket search and two atomic increments, so many threads may
+ * record at once without locking.
+ */
+final class LatencyHistogram {
+  /** Upper bound of each bucket, in nanoseconds; the last bucket is unbounded. */
+  static final long[] BOUNDS;
+
+  static {
+    final long[] b = new long[21];
+    long scale = TimeUnit.MICROSECONDS.toNanos(10);
+    for (int i = 0; i < b.length; i += 3) {
+      b[i] = scale;
+      b[i + 1] = 2 * scale;
+      b[i + 2] = 5 * scale;
+      scale *= 10;
+    }
+    BOUNDS = b;
+  }
+
+  private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+  private final LongAdder sum = new LongAdder();
+
+  /** @param nanos duration to record. */
+  void record(final long nanos) {
+    int lo = 0;
+    int hi = BOUNDS.length;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (BOUNDS[mid] < nanos) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    counts.incrementAndGet(lo);
+    sum.add(nanos);
+  }
+
+  /**
+   * Copy the bucket counts.
+   *
+   * <p>Buckets are read one at a time while other threads may still be recording, so the copy is
+   * only approximately consistent with {@link #sum()}.
+   *
+   * @return number of durations in each bucket; one more element than {@link #BOUNDS}.
+   */
+  long[] counts() {
+    final long[] r = new long[counts.length()];
+    for (int i = 0; i < r.length; i++) {
+      r[i] = counts.get(i);
+    }
+    return r;
+  }
+
+  /** @return total of all recorded durations, in nanoseconds. */
+  long sum() {
+    return sum.sum();
+  }
+
+  /**
+   * Estimate a quantile from bucket counts.
+   *
+   * @param counts counts, as returned by {@link #counts()}.
+   * @param q the quantile, between 0 and 1.
+   * @return upper bound of the bucket holding the quantile, in nanoseconds; 0 if nothing was
+   *     recorded, or {@link Long#MAX_VALUE} if it lies in the unbounded bucket.
+   */
+  static long quantile(final long[] counts, final double q) {
+    long total = 0;
+    for (final long c : counts) {
+      total += c;
+    }
+    if (total == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(q * total));
+    long seen = 0;
+    for (int i = 0; i < BOUNDS.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return BOUNDS[i];
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+}
@@ -14,11 +14,30 @@
 
 package com.google.gwtjsonrpc.server;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import com.google.gwtjsonrpc.common.AllowCrossSiteRequest;
+import com.google.gwtjsonrpc.common.CachePolicy;
+import com.google.gwtjsonrpc.common.Cacheable;
+import com.google.gwtjsonrpc.common.ConditionalGet;
+import com.google.gwtjsonrpc.common.Lane;
+import com.google.gwtjsonrpc.common.MaxRequestSize;
 import com.google.gwtjsonrpc.common.RemoteJsonService;
+import java.io.IOException;
+import java.io.StringReader;
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 
 /** Pairing of a specific {@link RemoteJsonService} implementation and method. */
@@ -27,23 +46,119 @@ public class MethodHandle {
   private final Method method;
   private final Type[] parameterTypes;
   private final boolean allowXsrf;
+  private final Cacheable cacheable;
+  private final int maxRequestSize;
+  private final String lane;
+  private final String cacheControl;
+  private final String vary;
+  private final boolean conditional;
+  private final Gson gson;
+  private final TypeAdapter<?>[] parameterAdapters;
+  private final Type resultType;
+  private final TypeAdapter<Object> resultAdapter;
+  private final java.lang.invoke.MethodHandle invoker;
 
   /**
    * Create a new handle for a specific service implementation and method.
    *
+   * <p>The adapters for each parameter and for the result declared by the method's {@link
+   * com.google.gwtjsonrpc.common.AsyncCallback} are resolved once, here, rather than being looked
+   * up by type on every call. The method itself is bound to <code>imp</code> as a {@link
+   * java.lang.invoke.MethodHandle}, so calls dispatch without going through reflection.
+   *
    * @param imp instance of the service all calls will be made on.
    * @param method Java method to invoke on <code>imp</code>. The last parameter of the method must
    *     accept an {@link com.google.gwtjsonrpc.common.AsyncCallback} and the method must return
    *     void.
+   * @param gson converter used to bind parameters and format results of the method.
    */
-  MethodHandle(final RemoteJsonService imp, final Method method) {
+  MethodHandle(final RemoteJsonService imp, final Method method, final Gson gson) {
     this.imp = imp;
     this.method = method;
     this.allowXsrf = method.getAnnotation(AllowCrossSiteRequest.class) != null;
+    this.cacheable = method.getAnnotation(Cacheable.class);
+    final MaxRequestSize size = method.getAnnotation(MaxRequestSize.class);
+    this.maxRequestSize = size != null ? size.value() : 0;
+    final Lane l = method.getAnnotation(Lane.class);
+    this.lane = l != null ? l.value() : null;
+
+    final CachePolicy policy = method.getAnnotation(CachePolicy.class);
+    if (policy != null && allowXsrf) {
+      cacheControl = (policy.shared() ? "public" : "private") + ", max-age=" + policy.maxAge();
+      final StringBuilder v = new StringBuilder("Accept-Encoding");
+      for (final String h : policy.vary()) {
+        v.append(", ").append(h);
+      }
+      vary = v.toString();
+    } else {
+      cacheControl = null;
+      vary = null;
+    }
+    this.conditional = method.getAnnotation(ConditionalGet.class) != null;
+    this.gson = gson;
 
     final Type[] args = method.getGenericParameterTypes();
     parameterTypes = new Type[args.length - 1];
     System.arraycopy(args, 0, parameterTypes, 0, parameterTypes.length);
+
+    parameterAdapters = new TypeAdapter<?>[parameterTypes.length];
+    for (int i = 0; i < parameterTypes.length; i++) {
+      parameterAdapters[i] = resolve(parameterTypes[i]);
+    }
+
+    final Type cb = args[args.length - 1];
+    if (cb instanceof ParameterizedType) {
+      resultType = ((ParameterizedType) cb).getActualTypeArguments()[0];
+    } else {
+      resultType = Object.class;
+    }
+    resultAdapter = resultType instanceof Class<?> ? resolve(resultType) : null;
+    invoker = bind(imp, method, parameterTypes.length);
+  }
+
+  /**
+   * Bind a method to its service as an invoker of type <code>(Object, Object[])void</code>.
+   *
+   * <p>The callback is passed first and the parameter array is spread into the remaining positions,
+   * so the caller's array can be used as-is.
+   *
+   * <p>The invoker is held per method rather than as a constant, so the JIT does not inline the
+   * service method through it. It saves the argument copy and the access and argument checks of
+   * {@link Method#invoke(Object, Object...)} on every call.
+   *
+   * @return the invoker; null if the method cannot be accessed this way, in which case calls fall
+   *     back to {@link Method#invoke(Object, Object...)}.
+   */
+  private static java.lang.invoke.MethodHandle bind(
+      final RemoteJsonService imp, final Method method, final int paramCount) {
+    final java.lang.invoke.MethodHandle target;
+    try {
+      target = MethodHandles.lookup().unreflect(method).bindTo(imp);
+    } catch (IllegalAccessException e) {
+      return null;
+    }
+
+    final int[] order = new int[paramCount + 1];
+    for (int i = 0; i < paramCount; i++) {
+      order[i] = i + 1;
+    }
+    order[paramCount] = 0;
+
+    final MethodType generic =
+        MethodType.genericMethodType(paramCount + 1).changeReturnType(void.class);
+    return MethodHandles.permuteArguments(target.asType(generic), generic, order)
+        .asSpreader(Object[].class, paramCount);
+  }
+
+  @SuppressWarnings("unchecked")
+  private TypeAdapter<Object> resolve(final Type type) {
+    try {
+      return (TypeAdapter<Object>) gson.getAdapter(TypeToken.get(type));
+    } catch (RuntimeException e) {
+      // Leave the failure to be reported by the call that needs it.
+      //
+      return null;
+    }
   }
 
   /** @return unique name of the method within the service. */
@@ -61,11 +176,148 @@ public class MethodHandle {
     return parameterTypes;
   }
 
+  /**
+   * Read the value of one parameter from a JSON stream.
+   *
+   * @param i position of the parameter.
+   * @param in stream positioned at the start of the value.
+   * @return the value, converted to the parameter's declared type.
+   * @throws JsonSyntaxException the value cannot be converted to the parameter's type.
+   * @throws IOException the stream cannot be read, or is not well formed JSON. The exception is
+   *     passed through as-is, so the caller can tell a body that is too large or not UTF-8 from a
+   *     value of the wrong type.
+   */
+  Object readParam(final int i, final JsonReader in) throws IOException {
+    try {
+      return adapter(i).read(in);
+    } catch (IllegalStateException e) {
+      throw new JsonSyntaxException(e);
+    } catch (JsonIOException e) {
+      // Adapters built on a JsonDeserializer read the value as a tree,
+      // which wraps any failure of the underlying stream.
+      //
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Parse the value of one parameter from its JSON text.
+   *
+   * @param i position of the parameter.
+   * @param json JSON text of the value.
+   * @return the value, converted to the parameter's declared type.
+   * @throws JsonSyntaxException the text is not a single value of the parameter's type.
+   */
+  Object parseParam(final int i, final String json) {
+    final JsonReader in = new JsonReader(new StringReader(json));
+    in.setLenient(true);
+    try {
+      final Object r = readParam(i, in);
+      if (in.peek() != JsonToken.END_DOCUMENT) {
+        throw new JsonSyntaxException("JSON document was not fully consumed.");
+      }
+      return r;
+    } catch (IOException e) {
+      // Only malformed JSON can fail when reading from a String.
+      //
+      throw new JsonSyntaxException(e);
+    }
+  }
+
+  /**
+   * Convert the value of one parameter from a JSON tree.
+   *
+   * @param i position of the parameter.
+   * @param v the value.
+   * @return the value, converted to the parameter's declared type.
+   * @throws JsonSyntaxException the value cannot be converted to the parameter's type.
+   */
+  Object bindParam(final int i, final JsonElement v) {
+    try {
+      return adapter(i).fromJsonTree(v);
+    } catch (IllegalStateException e) {
+      throw new JsonSyntaxException(e);
+    }
+  }
+
+  /**
+   * Write a result returned by this method.
+   *
+   * <p>The result is formatted according to its runtime type. The adapter resolved for the declared
+   * result type is used whenever the two are the same.
+   *
+   * @param result the result; may be null.
+   * @param out stream to write the value to.
+   * @throws IOException the stream cannot be written to.
+   */
+  void writeResult(final Object result, final JsonWriter out) throws IOException {
+    if (result == null) {
+      out.nullValue();
+    } else if (resultAdapter != null && result.getClass() == resultType) {
+      resultAdapter.write(out, result);
+    } else {
+      writeValue(gson, result, out);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  static void writeValue(final Gson gson, final Object value, final JsonWriter out)
+      throws IOException {
+    if (value == null) {
+      out.nullValue();
+    } else {
+      ((TypeAdapter<Object>) gson.getAdapter(value.getClass())).write(out, value);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private TypeAdapter<Object> adapter(final int i) {
+    final TypeAdapter<?> a = parameterAdapters[i];
+    return (TypeAdapter<Object>)
+        (a != null ? a : gson.getAdapter(TypeToken.get(parameterTypes[i])));
+  }
+
   /** @return true if the method can be called cross-site. */
   public boolean allowCrossSiteRequest() {
     return allowXsrf;
   }
 
+  /**
+   * @return value of the <code>Cache-Control</code> header for a successful GET of this method;
+   *     null if the response must not be cached.
+   */
+  String getCacheControl() {
+    return cacheControl;
+  }
+
+  /** @return value of the <code>Vary</code> header to send with {@link #getCacheControl()}. */
+  String getVary() {
+    return vary;
+  }
+
+  /** @return true if GET calls of this method may be answered with 304 Not Modified. */
+  boolean isConditional() {
+    return conditional;
+  }
+
+  /** @return largest request body accepted for the method; 0 to use the servlet's limit. */
+  int getMaxRequestSize() {
+    return maxRequestSize;
+  }
+
+  /** @return name of the method's lane; null if it is not in a lane. */
+  String getLane() {
+    return lane;
+  }
+
+  /** @return the caching policy of the method; null if its results must not be reused. */
+  Cacheable getCacheable() {
+    return cacheable;
+  }
+
   /**
    * Invoke this method with the specified arguments, updating the callback.
    *
@@ -75,6 +327,18 @@ public class MethodHandle {
    *     performs its work. Only the last onSuccess or onFailure invocation matters.
    */
   public void invoke(final Object[] arguments, final ActiveCall callback) {
+    if (invoker == null) {
+      invokeReflectively(arguments, callback);
+      return;
+    }
+    try {
+      invoker.invokeExact((Object) callback, arguments);
+    } catch (Throwable e) {
+      callback.onInternalFailure(e);
+    }
+  }
+
+  private void invokeReflectively(final Object[] arguments, final ActiveCall callback) {
     try {
       final Object[] p = new Object[arguments.length + 1];
       System.arraycopy(arguments, 0, p, 0, arguments.length);
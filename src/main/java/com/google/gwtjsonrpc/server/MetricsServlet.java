@@ -0,0 +1,49 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the {@link RpcMetrics} of every {@link JsonServlet} in the same web application that
+ * collects them.
+ *
+ * <p>The metrics are written in the Prometheus text exposition format, so the servlet can be
+ * scraped directly by a monitoring system. Deploy it at a path that is not exposed to clients, as
+ * it reveals the names of all service methods.
+ */
+@SuppressWarnings("serial")
+public class MetricsServlet extends HttpServlet {
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  @Override
+  protected void doGet(final HttpServletRequest req, final HttpServletResponse rsp)
+      throws IOException {
+    rsp.setContentType(CONTENT_TYPE);
+    rsp.setHeader("Cache-Control", "no-cache");
+
+    final Writer w = new OutputStreamWriter(rsp.getOutputStream(), "UTF-8");
+    try {
+      RpcMetrics.writeText(RpcMetrics.registered(getServletContext()), w);
+    } finally {
+      w.close();
+    }
+  }
+}
@@ -16,45 +16,151 @@ package com.google.gwtjsonrpc.server;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.zip.GZIPOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.codec.binary.Base64;
 
 /** Utility to handle writing JSON-RPC responses, possibly compressed. */
 public class RPCServletUtils {
+  /**
+   * @return true if the client accepts a gzip compressed response: gzip is listed in its <code>
+   *     Accept-Encoding</code> header, or matched by <code>*</code>, with a quality above 0.
+   */
   public static boolean acceptsGzipEncoding(HttpServletRequest request) {
-    String accepts = request.getHeader("Accept-Encoding");
-    return accepts != null && accepts.indexOf("gzip") != -1;
+    final String accepts = request.getHeader("Accept-Encoding");
+    if (accepts == null) {
+      return false;
+    }
+    int q = HeaderScanner.quality(accepts, "gzip");
+    if (q < 0) {
+      q = HeaderScanner.quality(accepts, "x-gzip");
+    }
+    if (q < 0) {
+      q = HeaderScanner.quality(accepts, "*");
+    }
+    return q > 0;
   }
 
   public static void writeResponse(
       ServletContext ctx, HttpServletResponse res, String responseContent, boolean encodeWithGzip)
       throws IOException {
     byte[] data = responseContent.getBytes("UTF-8");
-    if (encodeWithGzip) {
-      ByteArrayOutputStream buf = new ByteArrayOutputStream(data.length);
-      GZIPOutputStream gz = new GZIPOutputStream(buf);
+    writeResponse(
+        ctx, res, data, data.length, encodeWithGzip ? ResponseCompressor.getDefault() : null, null);
+  }
+
+  /**
+   * Open a stream to write a JSON response whose length is not known in advance.
+   *
+   * <p>Up to <code>bufferSize</code> bytes are held in memory. A response that fits is sent in the
+   * same way as {@link #writeResponse(ServletContext, HttpServletResponse, String, boolean)}. A
+   * larger response is streamed to the client as it is written, using chunked transfer encoding.
+   * The response is complete once the returned stream is closed.
+   *
+   * @param ctx context used to log errors.
+   * @param res the response to write to.
+   * @param encodeWithGzip true if the client accepts a gzip compressed response.
+   * @param bufferSize number of bytes to hold before streaming the response.
+   * @return stream to write the UTF-8 encoded response to.
+   */
+  public static OutputStream openResponse(
+      ServletContext ctx, HttpServletResponse res, boolean encodeWithGzip, int bufferSize) {
+    return openResponse(
+        ctx, res, encodeWithGzip ? ResponseCompressor.getDefault() : null, bufferSize);
+  }
+
+  /**
+   * Open a stream to write a JSON response whose length is not known in advance.
+   *
+   * @param ctx context used to log errors.
+   * @param res the response to write to.
+   * @param compressor compressor to use if the response is worth compressing; null if the client
+   *     does not accept a gzip compressed response.
+   * @param bufferSize number of bytes to hold before streaming the response.
+   * @return stream to write the UTF-8 encoded response to.
+   * @see #openResponse(ServletContext, HttpServletResponse, boolean, int)
+   */
+  public static OutputStream openResponse(
+      ServletContext ctx, HttpServletResponse res, ResponseCompressor compressor, int bufferSize) {
+    return new ResponseOutputStream(ctx, res, compressor, bufferSize);
+  }
+
+  static void writeResponse(
+      ServletContext ctx,
+      HttpServletResponse res,
+      byte[] data,
+      int len,
+      ResponseCompressor compressor,
+      ResponseCompressor.Usage usage)
+      throws IOException {
+    if (compressor != null && compressor.shouldCompress(data, len, len, usage)) {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream(len / 2);
       try {
-        gz.write(data);
-        gz.finish();
-        gz.flush();
+        OutputStream gz = compressor.open(buf, usage);
+        gz.write(data, 0, len);
+        gz.close();
         res.setHeader("Content-Encoding", "gzip");
         data = buf.toByteArray();
+        len = data.length;
       } catch (IOException e) {
         ctx.log("Unable to compress response", e);
         res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
         return;
-      } finally {
-        gz.close();
       }
     }
 
-    res.setContentLength(data.length);
+    res.setContentLength(len);
+    setResponseHeaders(res);
+    res.getOutputStream().write(data, 0, len);
+  }
+
+  /**
+   * Compute a weak entity tag for a response.
+   *
+   * <p>The tag is weak because the same content may be sent with or without gzip compression, and a
+   * strong tag must differ whenever the bytes sent differ.
+   *
+   * @param content the content the tag identifies.
+   * @return the entity tag, including its <code>W/</code> prefix and quotes.
+   */
+  public static String entityTag(String content) {
+    final MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 not available", e);
+    }
+    final byte[] hash = md.digest(content.getBytes(StandardCharsets.UTF_8));
+    return "W/\"" + Base64.encodeBase64URLSafeString(hash) + '"';
+  }
+
+  /**
+   * Test whether the client already holds a current copy of the response.
+   *
+   * @param request the request, possibly carrying an <code>If-None-Match</code> header.
+   * @param entityTag the tag of the response that would be sent.
+   * @return true if the response may be replaced by 304 Not Modified.
+   */
+  public static boolean notModified(HttpServletRequest request, String entityTag) {
+    final String header = request.getHeader("If-None-Match");
+    return header != null && HeaderScanner.matchesEntityTag(header, entityTag);
+  }
+
+  static void setResponseHeaders(HttpServletResponse res) {
     res.setContentType("application/json; charset=utf-8");
-    res.setStatus(HttpServletResponse.SC_OK);
+    // Errors are reported inside the JSON response, except that a call
+    // refused because the server is busy keeps its status, so proxies
+    // and load balancers can tell the server is shedding load.
+    //
+    if (res.getStatus() != HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+      res.setStatus(HttpServletResponse.SC_OK);
+    }
     res.setHeader("Content-Disposition", "attachment");
-    res.getOutputStream().write(data);
   }
 
   private RPCServletUtils() {}
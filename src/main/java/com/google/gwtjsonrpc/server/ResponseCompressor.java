@@ -0,0 +1,346 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses JSON responses with gzip.
+ *
+ * <p>Each compressor keeps a small pool of {@link Deflater}s and output buffers and reuses them for
+ * the responses it compresses, rather than allocating native compressor state per response and
+ * leaving it to be finalized. The pool belongs to the compressor, not to the threads using it, so
+ * nothing is left behind on a container's threads once the web application is undeployed. Deflaters
+ * that do not fit in the pool are ended at once, and {@link #clear()} ends the pooled ones.
+ *
+ * <p>The compression level steps down from the configured level as more responses are compressed at
+ * once than there are processors, trading compression ratio for CPU time while the server is busy.
+ * Payloads whose start does not shrink noticeably at the fastest level are assumed to be
+ * incompressible and are sent as-is.
+ */
+public final class ResponseCompressor {
+  /** Responses no larger than this many bytes are not compressed by default. */
+  public static final int DEFAULT_THRESHOLD = 256;
+
+  private static final ResponseCompressor DEFAULT =
+      new ResponseCompressor(DEFAULT_THRESHOLD, Deflater.DEFAULT_COMPRESSION);
+
+  /** Number of bytes compressed to decide whether a payload is worth compressing. */
+  private static final int SAMPLE_SIZE = 1024;
+
+  /** Fixed gzip member header: deflate, no flags, no time, unknown OS. */
+  private static final byte[] GZIP_HEADER = {
+    0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+  };
+
+  /** Number of pool slots tried before creating or ending a deflater. */
+  private static final int PROBES = 4;
+
+  /** @return compressor using the default threshold and compression level. */
+  public static ResponseCompressor getDefault() {
+    return DEFAULT;
+  }
+
+  private final int threshold;
+  private final int level;
+  private final int processors;
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicInteger deflaters = new AtomicInteger();
+  private final AtomicReferenceArray<Pooled> pool = new AtomicReferenceArray<>(poolSize());
+
+  /**
+   * Create a compressor.
+   *
+   * @param threshold responses no larger than this many bytes are sent uncompressed.
+   * @param level compression level used while the server is not busy, from {@link
+   *     Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}, or {@link
+   *     Deflater#DEFAULT_COMPRESSION}.
+   */
+  public ResponseCompressor(final int threshold, final int level) {
+    if (level != Deflater.DEFAULT_COMPRESSION
+        && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+      throw new IllegalArgumentException("Invalid compression level " + level);
+    }
+    this.threshold = threshold;
+    this.level = level == Deflater.DEFAULT_COMPRESSION ? 6 : level;
+    this.processors = Runtime.getRuntime().availableProcessors();
+  }
+
+  /** @return number of pooled deflaters: a power of two, with room for every processor. */
+  private static int poolSize() {
+    final int n = 2 * Runtime.getRuntime().availableProcessors();
+    return Integer.highestOneBit(n - 1) << 1;
+  }
+
+  /** @return responses no larger than this many bytes are sent uncompressed. */
+  public int getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * End the pooled deflaters, freeing their native memory.
+   *
+   * <p>The compressor remains usable; it creates new deflaters as it needs them. Deflaters in use
+   * by open streams are ended once those streams are closed or aborted.
+   */
+  public void clear() {
+    for (int i = 0; i < pool.length(); i++) {
+      final Pooled p = pool.getAndSet(i, null);
+      if (p != null) {
+        end(p);
+      }
+    }
+  }
+
+  /** @return number of responses being compressed right now. */
+  int active() {
+    return active.get();
+  }
+
+  /** @return number of deflaters created by this compressor and not yet ended. */
+  int deflaters() {
+    return deflaters.get();
+  }
+
+  /** @return level to compress the next response at, given the current load. */
+  int currentLevel() {
+    final int n = active.get();
+    if (n <= processors) {
+      return level;
+    } else if (n <= 2 * processors) {
+      return Math.max(Deflater.BEST_SPEED, level / 2);
+    }
+    return Deflater.BEST_SPEED;
+  }
+
+  /**
+   * Decide whether a response should be compressed.
+   *
+   * @param data the response, or at least its start.
+   * @param len number of bytes of <code>data</code> available.
+   * @param total length of the complete response; larger than <code>len</code> if only its start is
+   *     available.
+   * @param usage counters to add the time spent sampling the response to; may be null.
+   * @return true if the response is large enough and appears to be compressible.
+   */
+  boolean shouldCompress(final byte[] data, final int len, final long total, final Usage usage) {
+    if (total <= threshold) {
+      return false;
+    }
+
+    final Pooled p = acquire();
+    final long start = System.nanoTime();
+    try {
+      final int n = Math.min(len, SAMPLE_SIZE);
+      final Deflater def = p.deflater;
+      def.setLevel(Deflater.BEST_SPEED);
+      def.setInput(data, 0, n);
+      def.finish();
+      while (!def.finished()) {
+        def.deflate(p.buf, 0, p.buf.length);
+      }
+      // Expect at least 10% savings from the sample.
+      //
+      return def.getBytesWritten() * 10 < n * 9L;
+    } finally {
+      if (usage != null) {
+        usage.nanos += System.nanoTime() - start;
+      }
+      release(p);
+    }
+  }
+
+  /**
+   * Open a gzip stream.
+   *
+   * @param out stream to write the compressed data to; closed when the returned stream is closed.
+   * @param usage counters to add the work done by the stream to once it is closed; may be null.
+   * @return stream accepting the uncompressed data.
+   * @throws IOException the gzip header cannot be written.
+   */
+  OutputStream open(final OutputStream out, final Usage usage) throws IOException {
+    final GzipStream s = new GzipStream(out, acquire(), usage);
+    active.incrementAndGet();
+    s.pooled.deflater.setLevel(currentLevel());
+    try {
+      out.write(GZIP_HEADER);
+    } catch (IOException e) {
+      s.release();
+      throw e;
+    }
+    return s;
+  }
+
+  /**
+   * Abandon a stream returned by {@link #open(OutputStream)} that cannot be closed normally.
+   *
+   * <p>The stream's compressor is released without writing the rest of the gzip stream, and the
+   * stream it writes to is left open. Does nothing if the stream was already closed.
+   */
+  static void abort(final OutputStream s) {
+    if (s instanceof GzipStream) {
+      ((GzipStream) s).release();
+    }
+  }
+
+  /**
+   * Take a deflater from the pool, or create one if the slots near this thread's are all in use.
+   *
+   * <p>The slot is chosen by thread, so a thread usually gets back the deflater it used last.
+   */
+  private Pooled acquire() {
+    final int i = slot();
+    for (int p = 0; p < PROBES; p++) {
+      final Pooled d = pool.getAndSet((i + p) & (pool.length() - 1), null);
+      if (d != null) {
+        return d;
+      }
+    }
+    deflaters.incrementAndGet();
+    return new Pooled();
+  }
+
+  /** Return a deflater to the pool; it is ended if the slots near this thread's are all full. */
+  private void release(final Pooled d) {
+    d.deflater.reset();
+    final int i = slot();
+    for (int p = 0; p < PROBES; p++) {
+      if (pool.compareAndSet((i + p) & (pool.length() - 1), null, d)) {
+        return;
+      }
+    }
+    end(d);
+  }
+
+  private void end(final Pooled d) {
+    d.deflater.end();
+    deflaters.decrementAndGet();
+  }
+
+  private static int slot() {
+    final long id = Thread.currentThread().getId();
+    return (int) (id ^ (id >>> 32)) * 0x9e3779b9 >>> 16;
+  }
+
+  /** Counters of compression work done for one response. */
+  static final class Usage {
+    /** Time spent deflating, in nanoseconds. */
+    long nanos;
+
+    /** Bytes written by gzip streams, including their header and trailer. */
+    long bytesOut;
+  }
+
+  private static final class Pooled {
+    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    final byte[] buf = new byte[8192];
+  }
+
+  private final class GzipStream extends OutputStream {
+    private final OutputStream out;
+    private final CRC32 crc = new CRC32();
+    private final Usage usage;
+    private Pooled pooled;
+    private long nanos;
+    private long bytesOut = GZIP_HEADER.length;
+
+    GzipStream(final OutputStream out, final Pooled pooled, final Usage usage) {
+      this.out = out;
+      this.pooled = pooled;
+      this.usage = usage;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      if (pooled == null) {
+        throw new IOException("Stream closed");
+      }
+      crc.update(b, off, len);
+      final Deflater def = pooled.deflater;
+      def.setInput(b, off, len);
+      while (!def.needsInput()) {
+        deflate();
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (pooled == null) {
+        return;
+      }
+      try {
+        final Deflater def = pooled.deflater;
+        def.finish();
+        while (!def.finished()) {
+          deflate();
+        }
+
+        final byte[] t = new byte[8];
+        writeInt(t, 0, (int) crc.getValue());
+        writeInt(t, 4, (int) def.getBytesRead());
+        out.write(t);
+        bytesOut += t.length;
+      } finally {
+        release();
+      }
+      out.close();
+    }
+
+    void release() {
+      if (pooled != null) {
+        ResponseCompressor.this.release(pooled);
+        pooled = null;
+        active.decrementAndGet();
+
+        if (usage != null) {
+          usage.nanos += nanos;
+          usage.bytesOut += bytesOut;
+        }
+      }
+    }
+
+    private void deflate() throws IOException {
+      final long start = System.nanoTime();
+      final int n = pooled.deflater.deflate(pooled.buf, 0, pooled.buf.length);
+      nanos += System.nanoTime() - start;
+      if (n > 0) {
+        out.write(pooled.buf, 0, n);
+        bytesOut += n;
+      }
+    }
+
+    private void writeInt(final byte[] b, final int off, final int v) {
+      b[off] = (byte) v;
+      b[off + 1] = (byte) (v >> 8);
+      b[off + 2] = (byte) (v >> 16);
+      b[off + 3] = (byte) (v >> 24);
+    }
+  }
+}
@@ -0,0 +1,178 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Stream carrying a JSON response to the client.
+ *
+ * <p>The start of the response is held in a fixed size buffer. If the response is complete before
+ * the buffer fills it is sent with a Content-Length, exactly as {@link
+ * RPCServletUtils#writeResponse(ServletContext, HttpServletResponse, String, boolean)} would. Once
+ * the buffer overflows the headers are committed and the remainder of the response is streamed to
+ * the client, compressed if requested and worthwhile, using chunked transfer encoding. Memory used
+ * by a response is therefore bounded by the buffer size rather than by the size of the result.
+ *
+ * <p>The buffer is reused by the next response opened on the same thread once this one is closed or
+ * starts streaming, so writing a response allocates no buffer of its own.
+ */
+final class ResponseOutputStream extends OutputStream {
+  private static final ThreadLocal<byte[]> buffers = new ThreadLocal<>();
+
+  private final ServletContext ctx;
+  private final HttpServletResponse res;
+  private final ResponseCompressor compressor;
+  private final ResponseCompressor.Usage usage;
+  private byte[] buf;
+  private int cnt;
+  private long size;
+  private OutputStream out;
+  private boolean closed;
+
+  ResponseOutputStream(
+      final ServletContext ctx,
+      final HttpServletResponse res,
+      final ResponseCompressor compressor,
+      final int bufferSize) {
+    this.ctx = ctx;
+    this.res = res;
+    this.compressor = compressor;
+    this.usage = compressor != null ? new ResponseCompressor.Usage() : null;
+    this.buf = acquire(bufferSize);
+  }
+
+  private static byte[] acquire(final int bufferSize) {
+    final byte[] b = buffers.get();
+    if (b != null && b.length == bufferSize) {
+      buffers.set(null);
+      return b;
+    }
+    return new byte[bufferSize];
+  }
+
+  /** Return the buffer to this thread's pool, once the response no longer needs it. */
+  private void releaseBuffer() {
+    if (buf != null) {
+      if (buffers.get() == null) {
+        buffers.set(buf);
+      }
+      buf = null;
+    }
+  }
+
+  /** @return number of bytes written to the stream, before any compression. */
+  long size() {
+    return size;
+  }
+
+  /** @return work done compressing the response so far; null if it may not be compressed. */
+  ResponseCompressor.Usage compression() {
+    return usage;
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    ensureOpen();
+    size++;
+    if (out == null && cnt < buf.length) {
+      buf[cnt++] = (byte) b;
+      return;
+    }
+    stream().write(b);
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    ensureOpen();
+    size += len;
+    if (out == null && len <= buf.length - cnt) {
+      System.arraycopy(b, off, buf, cnt, len);
+      cnt += len;
+      return;
+    }
+    stream().write(b, off, len);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    // While buffering there is nothing to flush; sending the buffer
+    // early would lose the Content-Length of a short response.
+    //
+    if (out != null) {
+      out.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    if (out == null) {
+      try {
+        RPCServletUtils.writeResponse(ctx, res, buf, cnt, compressor, usage);
+      } finally {
+        releaseBuffer();
+      }
+    } else {
+      out.close();
+    }
+  }
+
+  /**
+   * Abandon the response if it was not closed, such as because writing it failed.
+   *
+   * <p>Releases the compressor of a streamed response without finishing the gzip stream, so an
+   * aborted response does not hold compressor state or count as an active compression. Does nothing
+   * once the stream has been closed.
+   */
+  void abort() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    releaseBuffer();
+    if (out != null) {
+      ResponseCompressor.abort(out);
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Response already closed");
+    }
+  }
+
+  private OutputStream stream() throws IOException {
+    if (out == null) {
+      RPCServletUtils.setResponseHeaders(res);
+      if (compressor != null && compressor.shouldCompress(buf, cnt, Long.MAX_VALUE, usage)) {
+        res.setHeader("Content-Encoding", "gzip");
+        out = compressor.open(res.getOutputStream(), usage);
+      } else {
+        out = res.getOutputStream();
+      }
+      out.write(buf, 0, cnt);
+      releaseBuffer();
+    }
+    return out;
+  }
+}
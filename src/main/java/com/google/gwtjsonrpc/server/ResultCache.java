@@ -0,0 +1,104 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serialized results of {@link com.google.gwtjsonrpc.common.Cacheable} methods.
+ *
+ * <p>Entries expire after their own time to live. The cache is bounded by the approximate memory
+ * used by the cached JSON; when it is full the oldest entries are evicted first.
+ */
+final class ResultCache {
+  /** A cached result, ready to be written into a response. */
+  static final class Entry {
+    final String json;
+    private final String key;
+    private final long expires;
+
+    private Entry(final String key, final String json, final long expires) {
+      this.key = key;
+      this.json = json;
+      this.expires = expires;
+    }
+
+    private long weight() {
+      // Characters are two bytes each, plus the key and overheads.
+      //
+      return 2L * (json.length() + key.length()) + 64;
+    }
+  }
+
+  private final long maxWeight;
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+  private final AtomicLong weight = new AtomicLong();
+
+  /** @param maxWeight approximate number of bytes the cache may use. */
+  ResultCache(final long maxWeight) {
+    this.maxWeight = maxWeight;
+  }
+
+  /** @return the unexpired entry for the key; null if there is none. */
+  Entry get(final String key) {
+    final Entry e = entries.get(key);
+    if (e == null) {
+      return null;
+    }
+    if (e.expires - System.nanoTime() <= 0) {
+      entries.remove(key, e);
+      return null;
+    }
+    return e;
+  }
+
+  /**
+   * Cache a result.
+   *
+   * @param key identity of the call.
+   * @param json serialized result.
+   * @param maxAge seconds the result may be reused for.
+   */
+  void put(final String key, final String json, final int maxAge) {
+    final Entry e =
+        new Entry(key, json, System.nanoTime() + TimeUnit.SECONDS.toNanos(Math.max(maxAge, 0)));
+    final long w = e.weight();
+    if (w > maxWeight) {
+      return;
+    }
+
+    // An entry counts against the limit until it leaves the queue, even
+    // if it has already been replaced or has expired, so the queue
+    // itself stays bounded.
+    //
+    order.add(e);
+    weight.addAndGet(w);
+    entries.put(key, e);
+
+    while (weight.get() > maxWeight) {
+      final Entry oldest = order.poll();
+      if (oldest == null) {
+        break;
+      }
+      weight.addAndGet(-oldest.weight());
+      entries.remove(oldest.key, oldest);
+    }
+  }
+}
@@ -0,0 +1,666 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletContext;
+
+/**
+ * Counters and latency histograms of the calls handled by one {@link JsonServlet}.
+ *
+ * <p>Each method has its own counters and a histogram per {@link Phase}, created when the servlet
+ * starts, so recording a call only updates atomic counters and never takes a lock. Calls that are
+ * not bound to a method, such as requests that cannot be parsed, are counted under the method name
+ * <code>(unknown)</code>; the envelope of a batch request is counted under <code>(batch)</code>
+ * while its calls are counted under their own methods.
+ *
+ * <p>The metrics are exported through JMX as an {@link RpcMetricsMXBean}, and as text by {@link
+ * MetricsServlet}.
+ */
+public final class RpcMetrics implements RpcMetricsMXBean {
+  /** Parts of handling a call that are timed separately. */
+  public enum Phase {
+    /** Reading and binding the request. */
+    PARSE,
+    /** Validating the XSRF token. */
+    XSRF,
+    /** Running the service method, until it supplies its result. */
+    INVOKE,
+    /** Writing the response, excluding compression. */
+    FORMAT,
+    /** Compressing the response. */
+    COMPRESS;
+
+    String label() {
+      return name().toLowerCase(Locale.US);
+    }
+  }
+
+  /** Per-method counters, with their name and help text in the text format. */
+  private enum Counter {
+    CALLS("gwtjsonrpc_calls_total", "Calls completed."),
+    ERRORS("gwtjsonrpc_errors_total", "Calls completed with an error."),
+    REQUEST_BYTES("gwtjsonrpc_request_bytes_total", "Bytes of JSON received."),
+    REQUEST_WIRE_BYTES("gwtjsonrpc_request_wire_bytes_total", "Bytes of request bodies received."),
+    RESPONSE_BYTES("gwtjsonrpc_response_bytes_total", "Bytes of JSON sent."),
+    RESPONSE_WIRE_BYTES("gwtjsonrpc_response_wire_bytes_total", "Bytes of responses sent."),
+    CPU_NANOS("gwtjsonrpc_cpu_seconds_total", "CPU time of service methods and responses.", 1e9),
+    ALLOCATED_BYTES(
+        "gwtjsonrpc_allocated_bytes_total", "Bytes allocated by service methods and responses.");
+
+    final String metric;
+    final String help;
+    final double unit;
+
+    Counter(final String metric, final String help) {
+      this(metric, help, 1);
+    }
+
+    Counter(final String metric, final String help, final double unit) {
+      this.metric = metric;
+      this.help = help;
+      this.unit = unit;
+    }
+  }
+
+  static final String UNKNOWN = "(unknown)";
+  static final String BATCH = "(batch)";
+
+  private static final String DOMAIN = "com.google.gwtjsonrpc";
+
+  /** Get the metrics of every servlet of a web application that registered its metrics. */
+  static Collection<RpcMetrics> registered(final ServletContext ctx) {
+    return registry(ctx).values();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ConcurrentMap<String, RpcMetrics> registry(final ServletContext ctx) {
+    synchronized (RpcMetrics.class) {
+      Object r = ctx.getAttribute(RpcMetrics.class.getName());
+      if (r == null) {
+        r = new ConcurrentHashMap<String, RpcMetrics>();
+        ctx.setAttribute(RpcMetrics.class.getName(), r);
+      }
+      return (ConcurrentMap<String, RpcMetrics>) r;
+    }
+  }
+
+  private final String servletName;
+  private final Map<String, MethodMetrics> methods;
+  private final InFlightBytes inFlightBytes;
+  private final ResponseCompressor compressor;
+  private final Map<String, Bulkhead> lanes;
+  private final AdaptiveLimiter limiter;
+  private final AtomicInteger inFlightCalls = new AtomicInteger();
+  private ObjectName objectName;
+  private long slowThreshold = Long.MAX_VALUE;
+  private int slowParamsLength;
+  private Gson gson;
+
+  RpcMetrics(
+      final String servletName,
+      final Collection<String> methodNames,
+      final InFlightBytes inFlightBytes,
+      final ResponseCompressor compressor,
+      final Map<String, Bulkhead> lanes,
+      final AdaptiveLimiter limiter) {
+    this.servletName = servletName;
+    this.inFlightBytes = inFlightBytes;
+    this.compressor = compressor;
+    this.lanes = Collections.unmodifiableMap(new TreeMap<>(lanes));
+    this.limiter = limiter;
+
+    final Map<String, MethodMetrics> m = new TreeMap<>();
+    for (final String name : methodNames) {
+      m.put(name, new MethodMetrics());
+    }
+    m.put(UNKNOWN, new MethodMetrics());
+    m.put(BATCH, new MethodMetrics());
+    methods = Collections.unmodifiableMap(m);
+  }
+
+  /**
+   * Start capturing slow calls.
+   *
+   * <p>Must be invoked before any call is recorded.
+   *
+   * @param threshold calls taking at least this many nanoseconds are candidates for capture.
+   * @param perMethod number of calls kept for each method.
+   * @param window nanoseconds a call is kept, unless displaced by a slower call.
+   * @param paramsLength number of characters of the parameters to keep; 0 to not keep them.
+   * @param gson converter to describe the parameters with.
+   */
+  void captureSlowCalls(
+      final long threshold,
+      final int perMethod,
+      final long window,
+      final int paramsLength,
+      final Gson gson) {
+    for (final MethodMetrics m : methods.values()) {
+      m.slow = new SlowCallLog(perMethod, window);
+    }
+    this.slowThreshold = threshold;
+    this.slowParamsLength = paramsLength;
+    this.gson = gson;
+  }
+
+  /**
+   * Publish the metrics to {@link MetricsServlet} and to the platform MBean server.
+   *
+   * <p>A failure to register with the MBean server is logged, but does not prevent the servlet from
+   * starting.
+   */
+  void register(final ServletContext ctx) {
+    registry(ctx).put(servletName, this);
+    try {
+      final String path = ctx.getContextPath();
+      final ObjectName n =
+          new ObjectName(
+              DOMAIN
+                  + ":type=RpcMetrics,context="
+                  + ObjectName.quote(path.isEmpty() ? "/" : path)
+                  + ",name="
+                  + ObjectName.quote(servletName));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, n);
+      objectName = n;
+    } catch (JMException | RuntimeException e) {
+      ctx.log("Cannot register metrics of " + servletName, e);
+    }
+  }
+
+  /** Withdraw the metrics published by {@link #register(ServletContext)}. */
+  void unregister(final ServletContext ctx) {
+    registry(ctx).remove(servletName, this);
+    if (objectName != null) {
+      final MBeanServer s = ManagementFactory.getPlatformMBeanServer();
+      try {
+        s.unregisterMBean(objectName);
+      } catch (JMException e) {
+        ctx.log("Cannot unregister metrics of " + servletName, e);
+      }
+      objectName = null;
+    }
+  }
+
+  /** Start measuring a request. */
+  CallStats start() {
+    inFlightCalls.incrementAndGet();
+    return new CallStats(System.nanoTime());
+  }
+
+  /** Finish a request started by {@link #start()}, recording its measurements. */
+  void finish(final ActiveCall call) {
+    inFlightCalls.decrementAndGet();
+    record(call);
+  }
+
+  /** Record the measurements of a call, such as a call of a batch, that does not hold a request. */
+  void record(final ActiveCall call) {
+    final CallStats s = call.stats;
+    final String name;
+    if (call.method != null) {
+      name = call.method.getName();
+    } else if (call.batch != null) {
+      name = BATCH;
+    } else {
+      name = UNKNOWN;
+    }
+    MethodMetrics m = methods.get(name);
+    if (m == null) {
+      // A subclass resolved a method this servlet did not declare.
+      //
+      m = methods.get(UNKNOWN);
+    }
+
+    m.get(Counter.CALLS).increment();
+    if (call.externalFailure != null || call.internalFailure != null) {
+      m.get(Counter.ERRORS).increment();
+    }
+    m.get(Counter.REQUEST_BYTES).add(s.requestBytes);
+    m.get(Counter.REQUEST_WIRE_BYTES).add(s.requestWireBytes);
+    m.get(Counter.RESPONSE_BYTES).add(s.responseBytes);
+    m.get(Counter.RESPONSE_WIRE_BYTES).add(s.responseWireBytes);
+    m.get(Counter.CPU_NANOS).add(s.cpuNanos);
+    m.get(Counter.ALLOCATED_BYTES).add(s.allocatedBytes);
+    for (final Phase p : Phase.values()) {
+      if (s.ran(p)) {
+        m.phases[p.ordinal()].record(s.nanos(p));
+      }
+    }
+    final long now = System.nanoTime();
+    final long total = now - s.start;
+    m.total.record(total);
+    if (total >= slowThreshold && m.slow.wouldKeep(total, now)) {
+      m.slow.offer(slowCall(name, call, total, now), now);
+    }
+  }
+
+  private SlowCall slowCall(
+      final String name, final ActiveCall call, final long total, final long now) {
+    String params = null;
+    if (slowParamsLength > 0 && call.params != null) {
+      params = prefixJson(call.params);
+    }
+
+    String user;
+    try {
+      user = call.getUser();
+    } catch (RuntimeException e) {
+      user = null;
+    }
+    return new SlowCall(
+        name,
+        user,
+        System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(total),
+        total,
+        call.stats.phaseNanos(),
+        call.stats.cpuNanos,
+        call.stats.allocatedBytes,
+        call.stats.requestBytes,
+        params,
+        now);
+  }
+
+  /**
+   * Describe the parameters of a slow call as JSON, up to the configured number of characters.
+   *
+   * <p>Formatting stops once enough has been written, so a call with large parameters is not
+   * formatted in full while the server is already slow.
+   */
+  private String prefixJson(final Object[] params) {
+    final Prefix out = new Prefix(slowParamsLength);
+    try {
+      gson.toJson(params, out);
+    } catch (JsonIOException e) {
+      if (!out.isFull()) {
+        throw e;
+      }
+    }
+    return out.text.toString();
+  }
+
+  /** Writer keeping the first characters written to it, failing once it has kept enough. */
+  private static final class Prefix extends Writer {
+    final StringBuilder text;
+    private final int limit;
+
+    Prefix(final int limit) {
+      this.text = new StringBuilder(Math.min(limit, 256));
+      this.limit = limit;
+    }
+
+    boolean isFull() {
+      return text.length() >= limit;
+    }
+
+    @Override
+    public void write(final char[] c, final int off, final int len) throws IOException {
+      final int n = Math.min(len, limit - text.length());
+      text.append(c, off, n);
+      if (n < len) {
+        throw new IOException("Prefix complete");
+      }
+    }
+
+    @Override
+    public void write(final String s, final int off, final int len) throws IOException {
+      final int n = Math.min(len, limit - text.length());
+      text.append(s, off, off + n);
+      if (n < len) {
+        throw new IOException("Prefix complete");
+      }
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+
+  @Override
+  public String getServletName() {
+    return servletName;
+  }
+
+  @Override
+  public int getInFlightCalls() {
+    return inFlightCalls.get();
+  }
+
+  @Override
+  public long getInFlightRequestBytes() {
+    return inFlightBytes != null ? inFlightBytes.get() : 0;
+  }
+
+  @Override
+  public int getActiveCompressions() {
+    return compressor != null ? compressor.active() : 0;
+  }
+
+  @Override
+  public int getConcurrencyLimit() {
+    return limiter != null ? limiter.getLimit() : 0;
+  }
+
+  @Override
+  public long getShedCalls() {
+    return limiter != null ? limiter.getRejected() : 0;
+  }
+
+  @Override
+  public List<MethodStats> getMethods() {
+    final List<MethodStats> r = new ArrayList<>();
+    for (final Map.Entry<String, MethodMetrics> e : called().entrySet()) {
+      final MethodMetrics m = e.getValue();
+
+      final List<PhaseStats> phases = new ArrayList<>();
+      for (final Phase p : Phase.values()) {
+        final PhaseStats s = phaseStats(p.label(), m.phases[p.ordinal()]);
+        if (s.getCount() > 0) {
+          phases.add(s);
+        }
+      }
+      r.add(
+          new MethodStats(
+              e.getKey(),
+              m.get(Counter.CALLS).sum(),
+              m.get(Counter.ERRORS).sum(),
+              m.get(Counter.REQUEST_BYTES).sum(),
+              m.get(Counter.REQUEST_WIRE_BYTES).sum(),
+              m.get(Counter.RESPONSE_BYTES).sum(),
+              m.get(Counter.RESPONSE_WIRE_BYTES).sum(),
+              m.get(Counter.CPU_NANOS).sum(),
+              m.get(Counter.ALLOCATED_BYTES).sum(),
+              phaseStats("total", m.total),
+              phases));
+    }
+    return r;
+  }
+
+  @Override
+  public List<SlowCall> getSlowCalls() {
+    final long now = System.nanoTime();
+    final List<SlowCall> r = new ArrayList<>();
+    for (final MethodMetrics m : methods.values()) {
+      if (m.slow != null) {
+        m.slow.collect(r, now);
+      }
+    }
+    Collections.sort(
+        r,
+        new Comparator<SlowCall>() {
+          @Override
+          public int compare(final SlowCall a, final SlowCall b) {
+            return Long.compare(b.nanos, a.nanos);
+          }
+        });
+    return r;
+  }
+
+  private static PhaseStats phaseStats(final String name, final LatencyHistogram h) {
+    final long[] counts = h.counts();
+    long n = 0;
+    for (final long c : counts) {
+      n += c;
+    }
+    return new PhaseStats(
+        name,
+        n,
+        n > 0 ? h.sum() / 1e6 / n : 0,
+        millis(LatencyHistogram.quantile(counts, 0.5)),
+        millis(LatencyHistogram.quantile(counts, 0.99)));
+  }
+
+  private static double millis(final long nanos) {
+    return nanos == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : nanos / 1e6;
+  }
+
+  /**
+   * Write metrics in the Prometheus text exposition format.
+   *
+   * <p>Each metric family is written once, with a sample per servlet and method, so the metrics of
+   * several servlets can be served together.
+   *
+   * @param all metrics of the servlets to include.
+   * @param out destination of the text.
+   */
+  static void writeText(final Collection<RpcMetrics> all, final Appendable out) throws IOException {
+    final TextWriter w = new TextWriter(out);
+
+    w.family("gwtjsonrpc_in_flight_calls", "gauge", "Requests being handled.");
+    for (final RpcMetrics r : all) {
+      w.sample("gwtjsonrpc_in_flight_calls", r.servletLabel(), r.getInFlightCalls());
+    }
+    w.family("gwtjsonrpc_in_flight_request_bytes", "gauge", "Bytes of request bodies being read.");
+    for (final RpcMetrics r : all) {
+      w.sample("gwtjsonrpc_in_flight_request_bytes", r.servletLabel(), r.getInFlightRequestBytes());
+    }
+    w.family("gwtjsonrpc_active_compressions", "gauge", "Responses being compressed.");
+    for (final RpcMetrics r : all) {
+      w.sample("gwtjsonrpc_active_compressions", r.servletLabel(), r.getActiveCompressions());
+    }
+
+    w.family(
+        "gwtjsonrpc_concurrency_limit",
+        "gauge",
+        "Requests admitted at once by the adaptive limit.");
+    for (final RpcMetrics r : all) {
+      if (r.limiter != null) {
+        w.sample("gwtjsonrpc_concurrency_limit", r.servletLabel(), r.getConcurrencyLimit());
+      }
+    }
+    w.family("gwtjsonrpc_shed_total", "counter", "Requests refused by the adaptive limit.");
+    for (final RpcMetrics r : all) {
+      if (r.limiter != null) {
+        w.sample("gwtjsonrpc_shed_total", r.servletLabel(), r.getShedCalls());
+      }
+    }
+
+    w.family("gwtjsonrpc_lane_active_calls", "gauge", "Calls running in a lane.");
+    for (final RpcMetrics r : all) {
+      for (final Map.Entry<String, Bulkhead> e : r.lanes.entrySet()) {
+        w.sample("gwtjsonrpc_lane_active_calls", r.laneLabel(e.getKey()), e.getValue().getActive());
+      }
+    }
+    w.family("gwtjsonrpc_lane_queued_calls", "gauge", "Calls waiting to run in a lane.");
+    for (final RpcMetrics r : all) {
+      for (final Map.Entry<String, Bulkhead> e : r.lanes.entrySet()) {
+        w.sample("gwtjsonrpc_lane_queued_calls", r.laneLabel(e.getKey()), e.getValue().getQueued());
+      }
+    }
+    w.family("gwtjsonrpc_lane_rejected_total", "counter", "Calls refused because a lane was full.");
+    for (final RpcMetrics r : all) {
+      for (final Map.Entry<String, Bulkhead> e : r.lanes.entrySet()) {
+        w.sample(
+            "gwtjsonrpc_lane_rejected_total", r.laneLabel(e.getKey()), e.getValue().getRejected());
+      }
+    }
+
+    for (final Counter c : Counter.values()) {
+      w.family(c.metric, "counter", c.help);
+      for (final RpcMetrics r : all) {
+        for (final Map.Entry<String, MethodMetrics> e : r.called().entrySet()) {
+          final long v = e.getValue().get(c).sum();
+          if (c.unit == 1) {
+            w.sample(c.metric, r.methodLabel(e.getKey()), v);
+          } else {
+            w.sample(c.metric, r.methodLabel(e.getKey()), v / c.unit);
+          }
+        }
+      }
+    }
+
+    w.family(
+        "gwtjsonrpc_response_compression_ratio",
+        "gauge",
+        "Bytes of JSON sent per byte of response.");
+    for (final RpcMetrics r : all) {
+      for (final Map.Entry<String, MethodMetrics> e : r.called().entrySet()) {
+        final MethodMetrics m = e.getValue();
+        w.sample(
+            "gwtjsonrpc_response_compression_ratio",
+            r.methodLabel(e.getKey()),
+            MethodStats.ratio(
+                m.get(Counter.RESPONSE_BYTES).sum(), m.get(Counter.RESPONSE_WIRE_BYTES).sum()));
+      }
+    }
+
+    w.family("gwtjsonrpc_call_seconds", "histogram", "Time to handle a call.");
+    for (final RpcMetrics r : all) {
+      for (final Map.Entry<String, MethodMetrics> e : r.called().entrySet()) {
+        w.histogram("gwtjsonrpc_call_seconds", r.methodLabel(e.getKey()), e.getValue().total);
+      }
+    }
+
+    w.family("gwtjsonrpc_phase_seconds", "histogram", "Time spent in each phase of a call.");
+    for (final RpcMetrics r : all) {
+      for (final Map.Entry<String, MethodMetrics> e : r.called().entrySet()) {
+        for (final Phase p : Phase.values()) {
+          w.histogram(
+              "gwtjsonrpc_phase_seconds",
+              r.methodLabel(e.getKey()) + ",phase=\"" + p.label() + "\"",
+              e.getValue().phases[p.ordinal()]);
+        }
+      }
+    }
+  }
+
+  /** @return metrics of the methods that have been called at least once. */
+  private Map<String, MethodMetrics> called() {
+    final Map<String, MethodMetrics> r = new LinkedHashMap<>();
+    for (final Map.Entry<String, MethodMetrics> e : methods.entrySet()) {
+      if (e.getValue().get(Counter.CALLS).sum() > 0) {
+        r.put(e.getKey(), e.getValue());
+      }
+    }
+    return r;
+  }
+
+  private String servletLabel() {
+    return "servlet=\"" + escape(servletName) + "\"";
+  }
+
+  private String laneLabel(final String lane) {
+    return servletLabel() + ",lane=\"" + escape(lane) + "\"";
+  }
+
+  private String methodLabel(final String method) {
+    return servletLabel() + ",method=\"" + escape(method) + "\"";
+  }
+
+  private static String escape(final String v) {
+    final StringBuilder r = new StringBuilder(v.length());
+    for (int i = 0; i < v.length(); i++) {
+      final char c = v.charAt(i);
+      switch (c) {
+        case '\\':
+          r.append("\\\\");
+          break;
+        case '"':
+          r.append("\\\"");
+          break;
+        case '\n':
+          r.append("\\n");
+          break;
+        default:
+          r.append(c);
+          break;
+      }
+    }
+    return r.toString();
+  }
+
+  private static final class MethodMetrics {
+    final LongAdder[] counters = new LongAdder[Counter.values().length];
+    final LatencyHistogram total = new LatencyHistogram();
+    final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+    SlowCallLog slow;
+
+    MethodMetrics() {
+      for (int i = 0; i < counters.length; i++) {
+        counters[i] = new LongAdder();
+      }
+      for (int i = 0; i < phases.length; i++) {
+        phases[i] = new LatencyHistogram();
+      }
+    }
+
+    LongAdder get(final Counter c) {
+      return counters[c.ordinal()];
+    }
+  }
+
+  private static final class TextWriter {
+    private final Appendable out;
+
+    TextWriter(final Appendable out) {
+      this.out = out;
+    }
+
+    void family(final String name, final String type, final String help) throws IOException {
+      out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+      out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    void sample(final String name, final String labels, final long value) throws IOException {
+      sample(name, labels, Long.toString(value));
+    }
+
+    void sample(final String name, final String labels, final double value) throws IOException {
+      sample(name, labels, Double.toString(value));
+    }
+
+    private void sample(final String name, final String labels, final String value)
+        throws IOException {
+      out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    void histogram(final String name, final String labels, final LatencyHistogram h)
+        throws IOException {
+      final long[] counts = h.counts();
+      long n = 0;
+      for (int i = 0; i < LatencyHistogram.BOUNDS.length; i++) {
+        n += counts[i];
+        sample(name + "_bucket", labels + ",le=\"" + LatencyHistogram.BOUNDS[i] / 1e9 + "\"", n);
+      }
+      n += counts[LatencyHistogram.BOUNDS.length];
+      sample(name + "_bucket", labels + ",le=\"+Inf\"", n);
+      sample(name + "_sum", labels, h.sum() / 1e9);
+      sample(name + "_count", labels, n);
+    }
+  }
+}
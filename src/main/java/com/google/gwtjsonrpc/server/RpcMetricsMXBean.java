@@ -0,0 +1,317 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Management interface of a servlet's {@link RpcMetrics}.
+ *
+ * <p>Registered with the platform MBean server under <code>
+ * com.google.gwtjsonrpc:type=RpcMetrics,context=...,name=...</code>, naming the servlet's context
+ * path and servlet name.
+ */
+public interface RpcMetricsMXBean {
+  /** @return name of the servlet. */
+  String getServletName();
+
+  /** @return number of requests being handled. */
+  int getInFlightCalls();
+
+  /** @return number of bytes of request bodies being read. */
+  long getInFlightRequestBytes();
+
+  /** @return number of responses being compressed. */
+  int getActiveCompressions();
+
+  /** @return number of requests currently admitted at once; 0 if the limit is not adaptive. */
+  int getConcurrencyLimit();
+
+  /** @return number of requests refused by the adaptive concurrency limit. */
+  long getShedCalls();
+
+  /** @return statistics of each method that has been called. */
+  List<MethodStats> getMethods();
+
+  /** @return the slowest recent calls of each method, slowest first. */
+  List<SlowCall> getSlowCalls();
+
+  /** Statistics of one method. */
+  final class MethodStats {
+    private final String name;
+    private final long calls;
+    private final long errors;
+    private final long requestBytes;
+    private final long requestWireBytes;
+    private final long responseBytes;
+    private final long responseWireBytes;
+    private final long cpuNanos;
+    private final long allocatedBytes;
+    private final PhaseStats total;
+    private final List<PhaseStats> phases;
+
+    MethodStats(
+        final String name,
+        final long calls,
+        final long errors,
+        final long requestBytes,
+        final long requestWireBytes,
+        final long responseBytes,
+        final long responseWireBytes,
+        final long cpuNanos,
+        final long allocatedBytes,
+        final PhaseStats total,
+        final List<PhaseStats> phases) {
+      this.name = name;
+      this.calls = calls;
+      this.errors = errors;
+      this.requestBytes = requestBytes;
+      this.requestWireBytes = requestWireBytes;
+      this.responseBytes = responseBytes;
+      this.responseWireBytes = responseWireBytes;
+      this.cpuNanos = cpuNanos;
+      this.allocatedBytes = allocatedBytes;
+      this.total = total;
+      this.phases = phases;
+    }
+
+    /** @return name of the method. */
+    public String getName() {
+      return name;
+    }
+
+    /** @return number of calls completed. */
+    public long getCalls() {
+      return calls;
+    }
+
+    /** @return number of calls that completed with an error. */
+    public long getErrors() {
+      return errors;
+    }
+
+    /** @return bytes of JSON received in requests, after decompression. */
+    public long getRequestBytes() {
+      return requestBytes;
+    }
+
+    /** @return bytes of request bodies as received. */
+    public long getRequestWireBytes() {
+      return requestWireBytes;
+    }
+
+    /** @return bytes of JSON sent in responses, before compression. */
+    public long getResponseBytes() {
+      return responseBytes;
+    }
+
+    /** @return bytes of responses as sent. */
+    public long getResponseWireBytes() {
+      return responseWireBytes;
+    }
+
+    /** @return CPU time of the service method and response, in milliseconds; 0 if not measured. */
+    public double getCpuMillis() {
+      return cpuNanos / 1e6;
+    }
+
+    /** @return bytes allocated by the service method and response; 0 if not measured. */
+    public long getAllocatedBytes() {
+      return allocatedBytes;
+    }
+
+    /** @return ratio of request bytes to request bytes as received; 1 if nothing was received. */
+    public double getRequestCompressionRatio() {
+      return ratio(requestBytes, requestWireBytes);
+    }
+
+    /** @return ratio of response bytes to response bytes as sent; 1 if nothing was sent. */
+    public double getResponseCompressionRatio() {
+      return ratio(responseBytes, responseWireBytes);
+    }
+
+    /** @return latency of whole calls. */
+    public PhaseStats getTotal() {
+      return total;
+    }
+
+    /** @return latency of each phase that calls went through. */
+    public List<PhaseStats> getPhases() {
+      return phases;
+    }
+
+    static double ratio(final long bytes, final long wire) {
+      return wire > 0 ? (double) bytes / wire : 1;
+    }
+  }
+
+  /** Latency of one phase of a method's calls. */
+  final class PhaseStats {
+    private final String phase;
+    private final long count;
+    private final double meanMillis;
+    private final double p50Millis;
+    private final double p99Millis;
+
+    PhaseStats(
+        final String phase,
+        final long count,
+        final double meanMillis,
+        final double p50Millis,
+        final double p99Millis) {
+      this.phase = phase;
+      this.count = count;
+      this.meanMillis = meanMillis;
+      this.p50Millis = p50Millis;
+      this.p99Millis = p99Millis;
+    }
+
+    /** @return name of the phase. */
+    public String getPhase() {
+      return phase;
+    }
+
+    /** @return number of calls that went through the phase. */
+    public long getCount() {
+      return count;
+    }
+
+    /** @return mean time spent in the phase, in milliseconds. */
+    public double getMeanMillis() {
+      return meanMillis;
+    }
+
+    /** @return upper bound of the median time spent in the phase, in milliseconds. */
+    public double getP50Millis() {
+      return p50Millis;
+    }
+
+    /**
+     * @return upper bound of the 99th percentile of the time spent in the phase, in milliseconds.
+     */
+    public double getP99Millis() {
+      return p99Millis;
+    }
+  }
+
+  /** A call that took longer than the servlet's slow call threshold. */
+  final class SlowCall {
+    private final String method;
+    private final String user;
+    private final long startTime;
+    final long nanos;
+    private final long[] phaseNanos;
+    private final long cpuNanos;
+    private final long allocatedBytes;
+    private final long requestBytes;
+    private final String params;
+
+    /** When the call was recorded, by {@link System#nanoTime()}. */
+    final long recorded;
+
+    SlowCall(
+        final String method,
+        final String user,
+        final long startTime,
+        final long nanos,
+        final long[] phaseNanos,
+        final long cpuNanos,
+        final long allocatedBytes,
+        final long requestBytes,
+        final String params,
+        final long recorded) {
+      this.method = method;
+      this.user = user;
+      this.startTime = startTime;
+      this.nanos = nanos;
+      this.phaseNanos = phaseNanos;
+      this.cpuNanos = cpuNanos;
+      this.allocatedBytes = allocatedBytes;
+      this.requestBytes = requestBytes;
+      this.params = params;
+      this.recorded = recorded;
+    }
+
+    /** @return name of the method. */
+    public String getMethod() {
+      return method;
+    }
+
+    /** @return user who made the call; null if anonymous. */
+    public String getUser() {
+      return user;
+    }
+
+    /** @return when the call started. */
+    public Date getStartTime() {
+      return new Date(startTime);
+    }
+
+    /** @return time taken by the whole call, in milliseconds. */
+    public double getTotalMillis() {
+      return nanos / 1e6;
+    }
+
+    /** @return time spent parsing the request, in milliseconds. */
+    public double getParseMillis() {
+      return millis(RpcMetrics.Phase.PARSE);
+    }
+
+    /** @return time spent validating the XSRF token, in milliseconds. */
+    public double getXsrfMillis() {
+      return millis(RpcMetrics.Phase.XSRF);
+    }
+
+    /** @return time spent in the service method, in milliseconds. */
+    public double getInvokeMillis() {
+      return millis(RpcMetrics.Phase.INVOKE);
+    }
+
+    /** @return time spent formatting the response, in milliseconds. */
+    public double getFormatMillis() {
+      return millis(RpcMetrics.Phase.FORMAT);
+    }
+
+    /** @return time spent compressing the response, in milliseconds. */
+    public double getCompressMillis() {
+      return millis(RpcMetrics.Phase.COMPRESS);
+    }
+
+    /** @return CPU time of the service method and response, in milliseconds; 0 if not measured. */
+    public double getCpuMillis() {
+      return cpuNanos / 1e6;
+    }
+
+    /** @return bytes allocated by the service method and response; 0 if not measured. */
+    public long getAllocatedBytes() {
+      return allocatedBytes;
+    }
+
+    /** @return size of the request body once decompressed, in bytes; 0 for a call made by GET. */
+    public long getRequestBytes() {
+      return requestBytes;
+    }
+
+    /** @return start of the parameters as JSON; null if they are not captured. */
+    public String getParams() {
+      return params;
+    }
+
+    private double millis(final RpcMetrics.Phase p) {
+      return phaseNanos[p.ordinal()] / 1e6;
+    }
+  }
+}
@@ -16,13 +16,13 @@ package com.google.gwtjsonrpc.server;
 
 import com.google.gwtjsonrpc.common.CheckTokenException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import javax.crypto.Mac;
 import javax.crypto.ShortBufferException;
-import javax.crypto.spec.SecretKeySpec;
-import org.apache.commons.codec.binary.Base64;
 
 /**
  * Utility function to compute and verify XSRF tokens.
@@ -36,7 +36,25 @@ import org.apache.commons.codec.binary.Base64;
  */
 public class SignedToken {
   private static final int INT_SZ = 4;
-  private static final String MAC_ALG = "HmacSHA1";
+  static final String MAC_ALG = "HmacSHA1";
+
+  /** Number of pool slots tried before creating or dropping a state. */
+  private static final int PROBES = 4;
+
+  private static final char[] ENC =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+  private static final byte[] DEC = new byte[128];
+
+  static {
+    Arrays.fill(DEC, (byte) -1);
+    for (int i = 0; i < ENC.length; i++) {
+      DEC[ENC[i]] = (byte) i;
+    }
+    // Also accept the standard alphabet, as the codec we used to use did.
+    //
+    DEC['+'] = 62;
+    DEC['/'] = 63;
+  }
 
   /**
    * Generate a random key for use with the XSRF library.
@@ -49,10 +67,59 @@ public class SignedToken {
     return encodeBase64(r);
   }
 
+  /**
+   * State used to compute one token at a time.
+   *
+   * <p>Initializing a {@link Mac} goes through the security provider lookup, which is costly
+   * compared to signing a few bytes, and a shared {@link SecureRandom} is a point of contention.
+   * Pooling both, along with scratch buffers, lets tokens be signed and checked without locking or
+   * allocation. The pool belongs to the instance rather than to threads, so nothing is left behind
+   * on the container's threads once the instance is discarded, such as when the web application is
+   * redeployed.
+   */
+  private static final class State {
+    final SecureRandom rng;
+    final byte[] in;
+    final byte[] gen;
+    byte[] text;
+    private final Mac mac;
+    private KeyRing.Key macKey;
+
+    State(final Mac mac, final int tokenLength) {
+      this.mac = mac;
+      this.rng = new SecureRandom();
+      this.in = new byte[tokenLength];
+      this.gen = new byte[tokenLength];
+      this.text = new byte[64];
+    }
+
+    byte[] text(final int len) {
+      if (text.length < len) {
+        text = new byte[Math.max(len, 2 * text.length)];
+      }
+      return text;
+    }
+
+    /** @return the MAC, initialized with the key. */
+    Mac mac(final KeyRing.Key key) throws XsrfException {
+      if (macKey != key) {
+        // Almost every token is signed with the primary key, so the
+        // MAC is only initialized again once the keys are rotated.
+        //
+        macKey = null;
+        init(mac, key);
+        macKey = key;
+      }
+      return mac;
+    }
+  }
+
   private final int maxAge;
-  private final SecretKeySpec key;
-  private final SecureRandom rng;
+  private final KeyRingSource keys;
   private final int tokenLength;
+  private final int encodedLength;
+  private final AtomicReferenceArray<State> states = new AtomicReferenceArray<>(poolSize());
+  private final VerifiedTokenCache verified;
 
   /**
    * Create a new utility, using a randomly generated key.
@@ -72,10 +139,62 @@ public class SignedToken {
    * @throws XsrfException the JVM doesn't support the necessary algorithms.
    */
   public SignedToken(final int age, final String keyBase64) throws XsrfException {
+    this(age, keyBase64, 0);
+  }
+
+  /**
+   * Create a new utility, using the specific key and remembering recently verified tokens.
+   *
+   * <p>A client usually sends the same token many times during its life span. Once a token has been
+   * verified, checking it again with the same text only requires a hash table lookup and a test of
+   * its age, rather than computing its signature again.
+   *
+   * @param age the number of seconds a token may remain valid.
+   * @param keyBase64 base 64 encoded representation of the key.
+   * @param cacheSize number of verified tokens to remember; 0 to verify every token in full.
+   * @throws XsrfException the JVM doesn't support the necessary algorithms.
+   */
+  public SignedToken(final int age, final String keyBase64, final int cacheSize)
+      throws XsrfException {
+    this(age, fixed(KeyRing.single(keyBase64, MAC_ALG)), cacheSize);
+  }
+
+  /**
+   * Create a new utility, using keys which may be shared with other servers.
+   *
+   * <p>Tokens are signed with the ring's primary key, and identify that key so they can be verified
+   * by any server having the same ring.
+   *
+   * @param age the number of seconds a token may remain valid.
+   * @param source supplies the current keys.
+   * @param cacheSize number of verified tokens to remember; 0 to verify every token in full.
+   * @throws XsrfException the JVM doesn't support the necessary algorithms, or the keys are not
+   *     available.
+   */
+  public SignedToken(final int age, final KeyRingSource source, final int cacheSize)
+      throws XsrfException {
     maxAge = age > 5 ? age / 5 : age;
-    key = new SecretKeySpec(decodeBase64(keyBase64), MAC_ALG);
-    rng = new SecureRandom();
-    tokenLength = 2 * INT_SZ + newMac().getMacLength();
+    keys = source;
+    final Mac m = newMac();
+    init(m, source.get().primary());
+    tokenLength = 2 * INT_SZ + m.getMacLength();
+    encodedLength = (tokenLength * 4 + 2) / 3;
+    verified = cacheSize > 0 ? new VerifiedTokenCache(cacheSize) : null;
+  }
+
+  /** @return number of pooled states: a power of two, with room for every processor. */
+  private static int poolSize() {
+    final int n = 4 * Runtime.getRuntime().availableProcessors();
+    return Integer.highestOneBit(n - 1) << 1;
+  }
+
+  private static KeyRingSource fixed(final KeyRing ring) {
+    return new KeyRingSource() {
+      @Override
+      public KeyRing get() {
+        return ring;
+      }
+    };
   }
 
   /** @return maximum age of a signed token, in seconds. */
@@ -111,12 +230,24 @@ public class SignedToken {
    * @throws XsrfException the JVM doesn't support the necessary algorithms.
    */
   public String newToken(final String text) throws XsrfException {
-    final int q = rng.nextInt();
-    final byte[] buf = new byte[tokenLength];
-    encodeInt(buf, 0, q);
-    encodeInt(buf, INT_SZ, now() ^ q);
-    computeToken(buf, text);
-    return encodeBase64(buf) + '$' + text;
+    final KeyRing.Key k = keys.get().primary();
+    final StringBuilder r = new StringBuilder(encodedLength + 34 + text.length());
+    final State st = acquire();
+    try {
+      final int q = st.rng.nextInt();
+      final byte[] buf = st.gen;
+      encodeInt(buf, 0, q);
+      encodeInt(buf, INT_SZ, now() ^ q);
+      computeToken(st, k, buf, text, 0, text.length());
+
+      if (k.id != null) {
+        r.append(k.id).append('.');
+      }
+      encodeBase64(buf, r);
+    } finally {
+      release(st);
+    }
+    return r.append('$').append(text).toString();
   }
 
   /**
@@ -143,53 +274,139 @@ public class SignedToken {
       throw new CheckTokenException("Token does not contain character '$'");
     }
 
-    final String recvText = tokenString.substring(s + 1);
-    final byte[] in;
+    // A token signed with a key of a ring starts with the key's id.
+    //
+    final int dot = tokenString.lastIndexOf('.', s);
+    if (s - (dot + 1) != encodedLength) {
+      throw new CheckTokenException("Token length mismatch");
+    }
+    final KeyRing.Key k = keys.get().get(tokenString, dot);
+    if (k == null) {
+      throw new CheckTokenException("Token key is unknown");
+    }
+
+    if (verified != null) {
+      final VerifiedTokenCache.Entry e = verified.get(tokenString);
+      if (e != null && e.key == k && e.matches(s + 1, text)) {
+        final int n = now();
+        if (!isExpired(e.issued, n)) {
+          return new ValidToken(needsRefresh(e.issued, n), tokenString, s + 1);
+        }
+        verified.remove(e);
+      }
+    }
+
+    final int c;
+    final int n;
+    final State st = acquire();
     try {
-      in = decodeBase64(tokenString.substring(0, s));
-    } catch (RuntimeException e) {
-      throw new CheckTokenException("Base64 decoding failed", e);
+      final byte[] in = st.in;
+      if (!decodeBase64(tokenString, dot + 1, s, in)) {
+        throw new CheckTokenException("Base64 decoding failed");
+      }
+
+      final int q = decodeInt(in, 0);
+      c = decodeInt(in, INT_SZ) ^ q;
+      n = now();
+      if (isExpired(c, n)) {
+        throw new CheckTokenException("Token is expired");
+      }
+
+      final byte[] gen = st.gen;
+      System.arraycopy(in, 0, gen, 0, 2 * INT_SZ);
+      if (text != null) {
+        computeToken(st, k, gen, text, 0, text.length());
+      } else {
+        computeToken(st, k, gen, tokenString, s + 1, tokenString.length());
+      }
+      if (!MessageDigest.isEqual(gen, in)) {
+        throw new CheckTokenException("Token text mismatch");
+      }
+    } finally {
+      release(st);
     }
 
-    if (in.length != tokenLength) {
-      throw new CheckTokenException("Token length mismatch");
+    if (verified != null) {
+      verified.put(tokenString, k, text != null ? text : tokenString.substring(s + 1), c);
     }
+    return new ValidToken(needsRefresh(c, n), tokenString, s + 1);
+  }
+
+  private boolean isExpired(final int issued, final int now) {
+    return maxAge > 0 && Math.abs(issued - now) > maxAge;
+  }
 
-    final int q = decodeInt(in, 0);
-    final int c = decodeInt(in, INT_SZ) ^ q;
-    final int n = now();
-    if (maxAge > 0 && Math.abs(c - n) > maxAge) {
-      throw new CheckTokenException("Token is expired");
+  private boolean needsRefresh(final int issued, final int now) {
+    return maxAge > 0 && issued + (maxAge >> 1) <= now;
+  }
+
+  /**
+   * Take a state from the pool, or create one if the slots near this thread's are all in use.
+   *
+   * <p>The slot is chosen by thread, so a thread usually gets back the state it used last.
+   */
+  private State acquire() throws XsrfException {
+    final int i = slot();
+    for (int p = 0; p < PROBES; p++) {
+      final State st = states.getAndSet((i + p) & (states.length() - 1), null);
+      if (st != null) {
+        return st;
+      }
     }
+    return new State(newMac(), tokenLength);
+  }
 
-    final byte[] gen = new byte[tokenLength];
-    System.arraycopy(in, 0, gen, 0, 2 * INT_SZ);
-    computeToken(gen, text != null ? text : recvText);
-    if (!Arrays.equals(gen, in)) {
-      throw new CheckTokenException("Token text mismatch");
+  /** Return a state to the pool; it is dropped if the slots near this thread's are all full. */
+  private void release(final State st) {
+    final int i = slot();
+    for (int p = 0; p < PROBES; p++) {
+      if (states.compareAndSet((i + p) & (states.length() - 1), null, st)) {
+        return;
+      }
     }
+  }
 
-    return new ValidToken(maxAge > 0 && c + (maxAge >> 1) <= n, recvText);
+  private static int slot() {
+    final long id = Thread.currentThread().getId();
+    return (int) (id ^ (id >>> 32)) * 0x9e3779b9 >>> 16;
   }
 
-  private void computeToken(final byte[] buf, final String text) throws XsrfException {
-    final Mac m = newMac();
+  /** Sign the nonce in the start of {@code buf}, and the characters of {@code text} in a range. */
+  private static void computeToken(
+      final State st,
+      final KeyRing.Key key,
+      final byte[] buf,
+      final String text,
+      final int start,
+      final int end)
+      throws XsrfException {
+    final byte[] t = st.text(end - start);
+    for (int k = start; k < end; k++) {
+      t[k - start] = (byte) text.charAt(k);
+    }
+
+    final Mac m = st.mac(key);
     m.update(buf, 0, 2 * INT_SZ);
-    m.update(toBytes(text));
+    m.update(t, 0, end - start);
     try {
       m.doFinal(buf, 2 * INT_SZ);
     } catch (ShortBufferException e) {
+      m.reset();
       throw new XsrfException("Unexpected token overflow", e);
     }
   }
 
-  private Mac newMac() throws XsrfException {
+  private static Mac newMac() throws XsrfException {
     try {
-      final Mac m = Mac.getInstance(MAC_ALG);
-      m.init(key);
-      return m;
+      return Mac.getInstance(MAC_ALG);
     } catch (NoSuchAlgorithmException e) {
       throw new XsrfException(MAC_ALG + " not supported", e);
+    }
+  }
+
+  private static void init(final Mac m, final KeyRing.Key key) throws XsrfException {
+    try {
+      m.init(key.spec);
     } catch (InvalidKeyException e) {
       throw new XsrfException("Invalid private key", e);
     }
@@ -199,12 +416,58 @@ public class SignedToken {
     return (int) (System.currentTimeMillis() / 5000L);
   }
 
-  private static byte[] decodeBase64(final String s) {
-    return new Base64(0, null, true).decode(toBytes(s));
+  /**
+   * Decode unpadded base 64 text into a buffer.
+   *
+   * @param src text to decode.
+   * @param start index of the start of the encoded text in {@code src}.
+   * @param end index of the end of the encoded text in {@code src}; the text must encode exactly
+   *     {@code dst.length} bytes.
+   * @param dst receives the decoded bytes.
+   * @return true if the text was decoded; false if it has a character outside the alphabet.
+   */
+  private static boolean decodeBase64(
+      final String src, final int start, final int end, final byte[] dst) {
+    int acc = 0;
+    int bits = 0;
+    int o = 0;
+    for (int i = start; i < end; i++) {
+      final char c = src.charAt(i);
+      final int v = c < DEC.length ? DEC[c] : -1;
+      if (v < 0) {
+        return false;
+      }
+      acc = (acc << 6) | v;
+      bits += 6;
+      if (bits >= 8) {
+        bits -= 8;
+        dst[o++] = (byte) (acc >>> bits);
+      }
+    }
+    return true;
   }
 
   private static String encodeBase64(final byte[] buf) {
-    return toString(new Base64(0, null, true).encode(buf));
+    final StringBuilder r = new StringBuilder((buf.length * 4 + 2) / 3);
+    encodeBase64(buf, r);
+    return r.toString();
+  }
+
+  /** Append the URL safe base 64 encoding of {@code buf}, without padding. */
+  private static void encodeBase64(final byte[] buf, final StringBuilder r) {
+    int i = 0;
+    for (; i + 2 < buf.length; i += 3) {
+      final int v = (buf[i] & 0xff) << 16 | (buf[i + 1] & 0xff) << 8 | (buf[i + 2] & 0xff);
+      r.append(ENC[v >>> 18]).append(ENC[(v >>> 12) & 0x3f]);
+      r.append(ENC[(v >>> 6) & 0x3f]).append(ENC[v & 0x3f]);
+    }
+    if (i + 1 == buf.length) {
+      final int v = (buf[i] & 0xff) << 16;
+      r.append(ENC[v >>> 18]).append(ENC[(v >>> 12) & 0x3f]);
+    } else if (i + 2 == buf.length) {
+      final int v = (buf[i] & 0xff) << 16 | (buf[i + 1] & 0xff) << 8;
+      r.append(ENC[v >>> 18]).append(ENC[(v >>> 12) & 0x3f]).append(ENC[(v >>> 6) & 0x3f]);
+    }
   }
 
   private static void encodeInt(final byte[] buf, final int o, final int v) {
@@ -230,20 +493,4 @@ public class SignedToken {
     r |= buf[o + 2] & 0xff;
     return (r << 8) | (buf[o + 3] & 0xff);
   }
-
-  private static byte[] toBytes(final String s) {
-    final byte[] r = new byte[s.length()];
-    for (int k = r.length - 1; k >= 0; k--) {
-      r[k] = (byte) s.charAt(k);
-    }
-    return r;
-  }
-
-  private static String toString(final byte[] b) {
-    final StringBuilder r = new StringBuilder(b.length);
-    for (int i = 0; i < b.length; i++) {
-      r.append((char) b[i]);
-    }
-    return r.toString();
-  }
 }
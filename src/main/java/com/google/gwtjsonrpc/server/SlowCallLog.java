@@ -0,0 +1,108 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import com.google.gwtjsonrpc.server.RpcMetricsMXBean.SlowCall;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The slowest recent calls of one method.
+ *
+ * <p>A fixed number of slots holds the slowest calls seen within a sliding window. A new call
+ * replaces an empty slot, a slot whose call has left the window, or else the fastest call held if
+ * it is faster than the new one. Slots are replaced by compare-and-set, so threads never block each
+ * other; when two threads race for a slot one of them simply looks again.
+ */
+final class SlowCallLog {
+  private final AtomicReferenceArray<SlowCall> slots;
+  private final long window;
+
+  /**
+   * @param size number of calls to hold.
+   * @param window nanoseconds a call stays in the log, unless displaced by a slower call.
+   */
+  SlowCallLog(final int size, final long window) {
+    this.slots = new AtomicReferenceArray<>(size);
+    this.window = window;
+  }
+
+  /**
+   * Test whether a call would be kept, before spending time describing it.
+   *
+   * @param nanos duration of the call.
+   * @param now current {@link System#nanoTime()}.
+   * @return true if the call is slower than one held, or a slot is free.
+   */
+  boolean wouldKeep(final long nanos, final long now) {
+    for (int i = 0; i < slots.length(); i++) {
+      final SlowCall c = slots.get(i);
+      if (c == null || expired(c, now) || c.nanos < nanos) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Offer a call to the log.
+   *
+   * @param call the call; kept only if it is among the slowest in the window.
+   * @param now current {@link System#nanoTime()}.
+   */
+  void offer(final SlowCall call, final long now) {
+    for (int attempt = 0; attempt <= slots.length(); attempt++) {
+      int victim = -1;
+      SlowCall v = null;
+      for (int i = 0; i < slots.length(); i++) {
+        final SlowCall c = slots.get(i);
+        if (c == null || expired(c, now)) {
+          victim = i;
+          v = c;
+          break;
+        }
+        if (v == null || c.nanos < v.nanos) {
+          victim = i;
+          v = c;
+        }
+      }
+      if (v != null && !expired(v, now) && v.nanos >= call.nanos) {
+        return;
+      }
+      if (slots.compareAndSet(victim, v, call)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Copy the calls still within the window.
+   *
+   * @param out list to add the calls to, in no particular order.
+   * @param now current {@link System#nanoTime()}.
+   */
+  void collect(final List<SlowCall> out, final long now) {
+    for (int i = 0; i < slots.length(); i++) {
+      final SlowCall c = slots.get(i);
+      if (c != null && !expired(c, now)) {
+        out.add(c);
+      }
+    }
+  }
+
+  private boolean expired(final SlowCall c, final long now) {
+    return now - c.recorded > window;
+  }
+}
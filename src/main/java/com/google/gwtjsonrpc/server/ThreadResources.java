@@ -0,0 +1,74 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Reads the CPU time and allocated bytes of the current thread.
+ *
+ * <p>Allocation is only measured by JVMs providing {@link com.sun.management.ThreadMXBean}, such as
+ * HotSpot; elsewhere it reads as 0.
+ */
+final class ThreadResources {
+  /**
+   * Enable measurement of thread CPU time and allocation, where the JVM supports it.
+   *
+   * @return reader of the current thread's resources; null if neither can be measured.
+   */
+  static ThreadResources create() {
+    final java.lang.management.ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+    boolean cpu = false;
+    if (tmx.isCurrentThreadCpuTimeSupported()) {
+      if (!tmx.isThreadCpuTimeEnabled()) {
+        tmx.setThreadCpuTimeEnabled(true);
+      }
+      cpu = true;
+    }
+
+    com.sun.management.ThreadMXBean alloc = null;
+    if (tmx instanceof com.sun.management.ThreadMXBean) {
+      final com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) tmx;
+      if (t.isThreadAllocatedMemorySupported()) {
+        if (!t.isThreadAllocatedMemoryEnabled()) {
+          t.setThreadAllocatedMemoryEnabled(true);
+        }
+        alloc = t;
+      }
+    }
+    return cpu || alloc != null ? new ThreadResources(cpu ? tmx : null, alloc) : null;
+  }
+
+  private final java.lang.management.ThreadMXBean cpu;
+  private final com.sun.management.ThreadMXBean alloc;
+
+  private ThreadResources(
+      final java.lang.management.ThreadMXBean cpu, final com.sun.management.ThreadMXBean alloc) {
+    this.cpu = cpu;
+    this.alloc = alloc;
+  }
+
+  /** @return CPU time used by the current thread, in nanoseconds. */
+  long cpuNanos() {
+    return cpu != null ? Math.max(0, cpu.getCurrentThreadCpuTime()) : 0;
+  }
+
+  /** @return bytes allocated by the current thread since it started. */
+  long allocatedBytes() {
+    return alloc != null
+        ? Math.max(0, alloc.getThreadAllocatedBytes(Thread.currentThread().getId()))
+        : 0;
+  }
+}
@@ -0,0 +1,212 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.MalformedInputException;
+
+/**
+ * Strictly decodes a UTF-8 stream as it is read.
+ *
+ * <p>Malformed input, including overlong forms, encoded surrogates, code points beyond U+10FFFF and
+ * a sequence truncated by the end of the stream, fails with a {@link MalformedInputException}. The
+ * byte buffer is reused by the next reader opened on the same thread once this one is closed, so
+ * decoding a request body allocates no buffers of its own.
+ */
+final class Utf8Reader extends Reader {
+  private static final int BUFFER_SIZE = 8192;
+  private static final ThreadLocal<byte[]> buffers = new ThreadLocal<>();
+
+  /**
+   * Open a reader on a stream, using this thread's buffer if it is free.
+   *
+   * @param in the stream to decode. It is closed when the reader is closed.
+   */
+  static Utf8Reader open(final InputStream in) {
+    byte[] buf = buffers.get();
+    if (buf != null) {
+      buffers.set(null);
+    } else {
+      buf = new byte[BUFFER_SIZE];
+    }
+    return new Utf8Reader(in, buf);
+  }
+
+  private final InputStream in;
+  private byte[] buf;
+  private int pos;
+  private int end;
+  private boolean eof;
+
+  /** Second half of a surrogate pair which did not fit in the caller's buffer; 0 if none. */
+  private char pendingLow;
+
+  private Utf8Reader(final InputStream in, final byte[] buf) {
+    this.in = in;
+    this.buf = buf;
+  }
+
+  @Override
+  public int read(final char[] cbuf, final int off, final int len) throws IOException {
+    if (buf == null) {
+      throw new IOException("Stream closed");
+    }
+    if (len == 0) {
+      return 0;
+    }
+
+    int n = off;
+    final int max = off + len;
+    if (pendingLow != 0) {
+      cbuf[n++] = pendingLow;
+      pendingLow = 0;
+    }
+
+    while (n < max) {
+      // Most JSON is ASCII, so copy runs of it without further checks.
+      //
+      while (n < max && pos < end && buf[pos] >= 0) {
+        cbuf[n++] = (char) buf[pos++];
+      }
+      if (n == max) {
+        break;
+      }
+
+      final int need = pos < end ? sequenceLength(buf[pos] & 0xff) : 1;
+      if (end - pos < need) {
+        if (n > off) {
+          // Return what we have rather than block for more input.
+          //
+          break;
+        }
+        if (!fill(need)) {
+          if (pos == end) {
+            return -1;
+          }
+          throw new MalformedInputException(end - pos);
+        }
+        continue;
+      }
+
+      final int cp = decode(need);
+      if (cp < 0x10000) {
+        cbuf[n++] = (char) cp;
+      } else {
+        cbuf[n++] = Character.highSurrogate(cp);
+        if (n < max) {
+          cbuf[n++] = Character.lowSurrogate(cp);
+        } else {
+          pendingLow = Character.lowSurrogate(cp);
+        }
+      }
+    }
+    return n - off;
+  }
+
+  @Override
+  public boolean ready() throws IOException {
+    return pendingLow != 0 || pos < end;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (buf != null) {
+      if (buffers.get() == null) {
+        buffers.set(buf);
+      }
+      buf = null;
+      in.close();
+    }
+  }
+
+  /** @return number of bytes in the sequence starting with this byte. */
+  private static int sequenceLength(final int lead) throws MalformedInputException {
+    if (lead < 0x80) {
+      return 1;
+    } else if (0xc2 <= lead && lead <= 0xdf) {
+      return 2;
+    } else if (0xe0 <= lead && lead <= 0xef) {
+      return 3;
+    } else if (0xf0 <= lead && lead <= 0xf4) {
+      return 4;
+    }
+    throw new MalformedInputException(1);
+  }
+
+  /** Decode the multi-byte sequence at {@link #pos}, which is entirely in the buffer. */
+  private int decode(final int need) throws MalformedInputException {
+    final int lead = buf[pos] & 0xff;
+    final int b1 = buf[pos + 1] & 0xff;
+
+    // The second byte is further limited to exclude overlong forms,
+    // surrogates, and code points beyond U+10FFFF.
+    //
+    int lo = 0x80;
+    int hi = 0xbf;
+    if (lead == 0xe0) {
+      lo = 0xa0;
+    } else if (lead == 0xed) {
+      hi = 0x9f;
+    } else if (lead == 0xf0) {
+      lo = 0x90;
+    } else if (lead == 0xf4) {
+      hi = 0x8f;
+    }
+    if (b1 < lo || hi < b1) {
+      throw new MalformedInputException(1);
+    }
+
+    int cp;
+    if (need == 2) {
+      cp = (lead & 0x1f) << 6 | (b1 & 0x3f);
+    } else {
+      cp = (need == 3 ? lead & 0x0f : lead & 0x07) << 6 | (b1 & 0x3f);
+      for (int i = 2; i < need; i++) {
+        final int b = buf[pos + i] & 0xff;
+        if ((b & 0xc0) != 0x80) {
+          throw new MalformedInputException(i);
+        }
+        cp = cp << 6 | (b & 0x3f);
+      }
+    }
+    pos += need;
+    return cp;
+  }
+
+  /**
+   * Read more of the stream into the buffer.
+   *
+   * @param need number of bytes wanted after {@link #pos}.
+   * @return true if that many bytes are now available; false if the stream ended first.
+   */
+  private boolean fill(final int need) throws IOException {
+    if (pos > 0) {
+      System.arraycopy(buf, pos, buf, 0, end - pos);
+      end -= pos;
+      pos = 0;
+    }
+    while (end < need && !eof) {
+      final int r = in.read(buf, end, buf.length - end);
+      if (r < 0) {
+        eof = true;
+      } else {
+        end += r;
+      }
+    }
+    return end >= need;
+  }
+}
@@ -17,15 +17,30 @@ package com.google.gwtjsonrpc.server;
 /** A validated token from {@link SignedToken#checkToken(String, String)} */
 public class ValidToken {
   private final boolean refresh;
-  private final String data;
+  private final String token;
+  private final int dataStart;
+  private String data;
 
   public ValidToken(final boolean ref, final String d) {
+    this(ref, d, 0);
+  }
+
+  /**
+   * Create a token whose text is the tail of a string.
+   *
+   * <p>The text is only extracted if it is asked for, as most callers only check the token.
+   */
+  ValidToken(final boolean ref, final String tokenString, final int start) {
     refresh = ref;
-    data = d;
+    token = tokenString;
+    dataStart = start;
   }
 
   /** The text protected by the token's encryption key. */
   public String getData() {
+    if (data == null) {
+      data = token.substring(dataStart);
+    }
     return data;
   }
 
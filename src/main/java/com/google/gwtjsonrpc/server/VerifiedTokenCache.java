@@ -0,0 +1,109 @@
+// Copyright 2020 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tokens recently verified by a {@link SignedToken}.
+ *
+ * <p>The cache is bounded by the number of tokens; when it is full the oldest entries are evicted
+ * first. Entries do not expire on their own, the {@link SignedToken} checks the age of a token each
+ * time it is found.
+ */
+final class VerifiedTokenCache {
+  /** A token whose signature is known to be valid. */
+  static final class Entry {
+    /** Time the token was issued, in the units of {@link SignedToken}. */
+    final int issued;
+
+    /** Key the token was verified with. */
+    final KeyRing.Key key;
+
+    private final String token;
+    private final String text;
+
+    private Entry(final String token, final KeyRing.Key key, final String text, final int issued) {
+      this.token = token;
+      this.key = key;
+      this.text = text;
+      this.issued = issued;
+    }
+
+    /**
+     * @param start index of the token's own text in the token string.
+     * @param expected text the token must have been signed with; null to accept the token's own.
+     * @return true if the token was verified against the expected text.
+     */
+    boolean matches(final int start, final String expected) {
+      if (expected != null) {
+        return expected.equals(text);
+      }
+      return token.length() - start == text.length() && token.startsWith(text, start);
+    }
+  }
+
+  private final int maxEntries;
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+
+  /** @param maxEntries number of tokens the cache may hold. */
+  VerifiedTokenCache(final int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /** @return the entry for the token string; null if it has not been verified recently. */
+  Entry get(final String token) {
+    return entries.get(token);
+  }
+
+  /**
+   * Record a verified token.
+   *
+   * @param token the complete token string.
+   * @param key key the token was verified with.
+   * @param text text the token's signature was verified against.
+   * @param issued time the token was issued.
+   */
+  void put(final String token, final KeyRing.Key key, final String text, final int issued) {
+    final Entry e = new Entry(token, key, text, issued);
+
+    // An entry counts against the limit until it leaves the queue, even
+    // if it has already been replaced or removed, so the queue itself
+    // stays bounded.
+    //
+    order.add(e);
+    size.incrementAndGet();
+    entries.put(token, e);
+
+    while (size.get() > maxEntries) {
+      final Entry oldest = order.poll();
+      if (oldest == null) {
+        break;
+      }
+      size.decrementAndGet();
+      entries.remove(oldest.token, oldest);
+    }
+  }
+
+  /** Forget a token, for example because it has expired. */
+  void remove(final Entry e) {
+    entries.remove(e.token, e);
+  }
+}
@@ -0,0 +1,113 @@
+// Copyright (C) 2020 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import org.junit.Test;
+
+public class ActiveCallTest {
+
+  /** Test a batch timing out fails only the calls still waiting for their result */
+  @Test
+  public void batchTimeoutTest() throws Exception {
+    AtomicReference<AsyncListener> listener = new AtomicReference<>();
+    HttpServletRequest req = asyncRequest(listener);
+
+    ActiveCall done = batchEntry(req);
+    done.onSuccess("done");
+
+    ActiveCall invalid = batchEntry(req);
+    Exception parseError = new Exception("Error parsing request");
+    invalid.onFailure(parseError);
+
+    ActiveCall waiting = batchEntry(req);
+    waiting.startAsync();
+
+    ActiveCall answered = batchEntry(req);
+    answered.startAsync();
+    answered.onSuccess("answered");
+
+    ActiveCall.startAsync(req, null, Arrays.asList(done, invalid, waiting, answered));
+    listener.get().onTimeout(null);
+
+    assertEquals("done", done.result);
+    assertNull(done.internalFailure);
+    assertSame(parseError, invalid.externalFailure);
+    assertNull(invalid.internalFailure);
+    assertTrue(waiting.internalFailure instanceof TimeoutException);
+    assertEquals("answered", answered.result);
+    assertNull(answered.internalFailure);
+  }
+
+  private static ActiveCall batchEntry(HttpServletRequest req) {
+    ActiveCall call = new ActiveCall(req, null);
+    call.batchEntry = true;
+    call.sendResponse =
+        new Runnable() {
+          @Override
+          public void run() {}
+        };
+    return call;
+  }
+
+  /** @return request supporting async operation, capturing the listener added to its context */
+  private static HttpServletRequest asyncRequest(final AtomicReference<AsyncListener> listener) {
+    final AsyncContext ctx =
+        proxy(
+            AsyncContext.class,
+            new InvocationHandler() {
+              @Override
+              public Object invoke(Object proxy, Method m, Object[] args) {
+                if (m.getName().equals("addListener")) {
+                  listener.set((AsyncListener) args[0]);
+                }
+                return null;
+              }
+            });
+    return proxy(
+        HttpServletRequest.class,
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            switch (m.getName()) {
+              case "isAsyncSupported":
+                return true;
+              case "startAsync":
+                return ctx;
+              default:
+                throw new UnsupportedOperationException(m.getName());
+            }
+          }
+        });
+  }
+
+  private static <T> T proxy(Class<T> type, InvocationHandler h) {
+    return type.cast(
+        Proxy.newProxyInstance(ActiveCallTest.class.getClassLoader(), new Class<?>[] {type}, h));
+  }
+}
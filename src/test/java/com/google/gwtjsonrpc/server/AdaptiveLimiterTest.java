@@ -0,0 +1,77 @@
+// Copyright (C) 2020 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class AdaptiveLimiterTest {
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private long now;
+
+  @Test
+  public void refusesBeyondLimit() {
+    final AdaptiveLimiter l = new AdaptiveLimiter(2, 1, 10);
+    assertTrue(l.acquire());
+    assertTrue(l.acquire());
+    assertFalse(l.acquire());
+    assertEquals(1, l.getRejected());
+    assertEquals(2, l.getInFlight());
+
+    l.release(MS, false);
+    assertEquals(1, l.getInFlight());
+    assertTrue(l.acquire());
+  }
+
+  @Test
+  public void growsWhileLatencyIsSteady() {
+    final AdaptiveLimiter l = new AdaptiveLimiter(10, 1, 100);
+    windows(l, 20, MS, 10);
+    assertTrue(l.getLimit() > 10);
+  }
+
+  @Test
+  public void doesNotGrowWhenUnused() {
+    final AdaptiveLimiter l = new AdaptiveLimiter(10, 1, 100);
+    windows(l, 20, MS, 1);
+    assertEquals(10, l.getLimit());
+  }
+
+  @Test
+  public void shrinksWhenLatencyRises() {
+    final AdaptiveLimiter l = new AdaptiveLimiter(50, 5, 100);
+    windows(l, 5, MS, 50);
+    final int before = l.getLimit();
+    windows(l, 5, 10 * MS, 50);
+    assertTrue(l.getLimit() < before);
+
+    windows(l, 100, 10 * MS, 50);
+    assertEquals(5, l.getLimit());
+  }
+
+  private void windows(final AdaptiveLimiter l, final int n, final long rtt, final int inFlight) {
+    for (int w = 0; w < n; w++) {
+      for (int i = 0; i < 10; i++) {
+        now += 10 * MS + 1;
+        l.sample(rtt, inFlight, now);
+      }
+    }
+  }
+}
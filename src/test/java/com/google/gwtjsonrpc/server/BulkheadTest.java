@@ -0,0 +1,75 @@
+// Copyright (C) 2020 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BulkheadTest {
+
+  /** Test calls beyond the concurrency and queue are refused */
+  @Test
+  public void rejectTest() {
+    final Bulkhead b = new Bulkhead(2, 0, 0);
+    assertTrue(b.acquire());
+    assertTrue(b.acquire());
+    assertEquals(2, b.getActive());
+    assertFalse(b.acquire());
+    assertEquals(1, b.getRejected());
+
+    b.release();
+    assertEquals(1, b.getActive());
+    assertTrue(b.acquire());
+  }
+
+  /** Test a queued call runs once a slot is returned */
+  @Test
+  public void queueTest() throws InterruptedException {
+    final Bulkhead b = new Bulkhead(1, 1, 10000);
+    assertTrue(b.acquire());
+
+    final boolean[] acquired = new boolean[1];
+    final Thread t =
+        new Thread() {
+          @Override
+          public void run() {
+            acquired[0] = b.acquire();
+          }
+        };
+    t.start();
+    while (b.getQueued() == 0) {
+      Thread.sleep(1);
+    }
+    assertFalse(b.acquire());
+
+    b.release();
+    t.join();
+    assertTrue(acquired[0]);
+    assertEquals(0, b.getQueued());
+    assertEquals(1, b.getRejected());
+  }
+
+  /** Test a queued call gives up after waiting too long */
+  @Test
+  public void waitTest() {
+    final Bulkhead b = new Bulkhead(1, 1, 10);
+    assertTrue(b.acquire());
+    assertFalse(b.acquire());
+    assertEquals(0, b.getQueued());
+  }
+}
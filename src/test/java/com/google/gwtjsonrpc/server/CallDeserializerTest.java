@@ -0,0 +1,218 @@
+// Copyright (C) 2020 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gwtjsonrpc.common.AsyncCallback;
+import com.google.gwtjsonrpc.common.MaxRequestSize;
+import com.google.gwtjsonrpc.common.RemoteJsonService;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+import org.junit.Test;
+
+public class CallDeserializerTest {
+
+  public interface TestService extends RemoteJsonService {
+    void echo(String s, int n, AsyncCallback<String> callback);
+
+    void sum(Map<String, Integer> values, AsyncCallback<Integer> callback);
+
+    @MaxRequestSize(16 * 1024)
+    void small(String s, AsyncCallback<String> callback);
+  }
+
+  /** Test parameters are bound to their declared types as they are read */
+  @Test
+  public void streamTest() throws Exception {
+    ActiveCall call =
+        read("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"echo\",\"params\":[\"a\",2]}");
+    assertEquals("echo", call.method.getName());
+    assertEquals("jsonrpc", call.versionName);
+    assertEquals(1, call.id.getAsInt());
+    assertArrayEquals(new Object[] {"a", 2}, call.params);
+  }
+
+  /** Test parameters sent before the method name are bound once it is known */
+  @Test
+  public void paramsBeforeMethodTest() throws Exception {
+    ActiveCall call =
+        read("{\"params\":[{\"a\":1,\"b\":2}],\"method\":\"sum\",\"version\":\"1.1\"}");
+    assertEquals("sum", call.method.getName());
+    assertEquals("version", call.versionName);
+    Map<String, Integer> expect = new HashMap<>();
+    expect.put("a", 1);
+    expect.put("b", 2);
+    assertEquals(expect, call.params[0]);
+  }
+
+  /** Test the wrong number of parameters is a parse error */
+  @Test(expected = JsonParseException.class)
+  public void paramCountTest() throws Exception {
+    read(request("echo", "[\"a\"]"));
+  }
+
+  /** Test a parameter of the wrong type is a parse error */
+  @Test(expected = JsonParseException.class)
+  public void paramTypeTest() throws Exception {
+    read(request("echo", "[\"a\",[]]"));
+  }
+
+  /** Test an unknown method is reported as such */
+  @Test(expected = NoSuchRemoteMethodException.class)
+  public void unknownMethodTest() throws Exception {
+    read(request("nope", "[]"));
+  }
+
+  /** Test exhausting the in-flight budget inside a parameter is not a parse error */
+  @Test
+  public void inFlightInParamTest() throws Exception {
+    InFlightBytes inFlight = new InFlightBytes(16 * 1024);
+    byte[] body = bytes(request("echo", "[\"" + fill(64 * 1024) + "\",1]"));
+    try {
+      read(new ByteArrayInputStream(body), inFlight);
+      fail("expected ExhaustedException");
+    } catch (InFlightBytes.ExhaustedException e) {
+      // expected
+    }
+    assertEquals(0, inFlight.get());
+  }
+
+  /** Test exhausting the in-flight budget inside a tree bound parameter is not a parse error */
+  @Test(expected = InFlightBytes.ExhaustedException.class)
+  public void inFlightInTreeParamTest() throws Exception {
+    StringBuilder values = new StringBuilder();
+    for (int i = 0; i < 8 * 1024; i++) {
+      values.append(i == 0 ? "" : ",").append("\"k").append(i).append("\":").append(i);
+    }
+    byte[] body = bytes(request("sum", "[{" + values + "}]"));
+    read(new ByteArrayInputStream(body), new InFlightBytes(16 * 1024));
+  }
+
+  /** Test a method's own size limit is enforced inside its parameters */
+  @Test(expected = BoundedInputStream.LimitExceededException.class)
+  public void methodLimitInParamTest() throws Exception {
+    read(request("small", "[\"" + fill(64 * 1024) + "\"]"));
+  }
+
+  /** Test a parameter within a method's own size limit is accepted */
+  @Test
+  public void methodLimitTest() throws Exception {
+    ActiveCall call = read(request("small", "[\"" + fill(12 * 1024) + "\"]"));
+    assertEquals(12 * 1024, ((String) call.params[0]).length());
+  }
+
+  /** Test malformed UTF-8 inside a parameter is not reported as a syntax error */
+  @Test(expected = MalformedInputException.class)
+  public void notUtf8InParamTest() throws Exception {
+    byte[] body = bytes(request("echo", "[\"" + fill(64 * 1024) + "\",1]"));
+    body[32 * 1024] = (byte) 0xff;
+    read(new ByteArrayInputStream(body), null);
+  }
+
+  /** Test a corrupt gzip body inside a parameter is not reported as a syntax error */
+  @Test(expected = ZipException.class)
+  public void notGzipInParamTest() throws Exception {
+    byte[] body = bytes(request("echo", "[\"" + fill(64 * 1024) + "\",1]"));
+
+    // A stored block holding the start of the body, then a block
+    // whose length check fails, in the middle of the first parameter.
+    //
+    ByteArrayOutputStream gz = new ByteArrayOutputStream();
+    gz.write(new byte[] {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+    int n = 32 * 1024;
+    gz.write(new byte[] {0, (byte) n, (byte) (n >> 8), (byte) ~n, (byte) (~n >> 8)});
+    gz.write(body, 0, n);
+    gz.write(new byte[] {1, 1, 0, 1, 0});
+    read(new GZIPInputStream(new ByteArrayInputStream(gz.toByteArray())), null);
+  }
+
+  static String request(String method, String params) {
+    return "{\"jsonrpc\":\"2.0\",\"method\":\"" + method + "\",\"params\":" + params + "}";
+  }
+
+  static ActiveCall read(String body) throws IOException {
+    return read(new ByteArrayInputStream(bytes(body)), null);
+  }
+
+  static ActiveCall read(InputStream body, InFlightBytes inFlight) throws IOException {
+    TestServlet servlet = new TestServlet();
+    ActiveCall call = new ActiveCall(null, null);
+    call.body = new BoundedInputStream(body, servlet.maxRequestSize(), inFlight);
+    try (Reader r = Utf8Reader.open(call.body)) {
+      JsonReader in = new JsonReader(r);
+      in.setLenient(true);
+      return new CallDeserializer<>(call, servlet).read(in);
+    }
+  }
+
+  static String fill(int n) {
+    char[] c = new char[n];
+    Arrays.fill(c, 'x');
+    return new String(c);
+  }
+
+  static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @SuppressWarnings("serial")
+  private static class TestServlet extends JsonServlet<ActiveCall> implements TestService {
+    private final Map<String, MethodHandle> methods = new HashMap<>();
+
+    TestServlet() {
+      Gson gson = defaultGsonBuilder().create();
+      for (Method m : TestService.class.getMethods()) {
+        methods.put(m.getName(), new MethodHandle(this, m, gson));
+      }
+    }
+
+    @Override
+    protected MethodHandle lookupMethod(String methodName) {
+      return methods.get(methodName);
+    }
+
+    @Override
+    public void echo(String s, int n, AsyncCallback<String> callback) {
+      callback.onSuccess(s);
+    }
+
+    @Override
+    public void sum(Map<String, Integer> values, AsyncCallback<Integer> callback) {
+      callback.onSuccess(values.size());
+    }
+
+    @Override
+    public void small(String s, AsyncCallback<String> callback) {
+      callback.onSuccess(s);
+    }
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright (C) 2020 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileKeyRingSourceTest {
+  private final Logger log = Logger.getLogger(FileKeyRingSource.class.getName());
+  private final List<LogRecord> logged = new ArrayList<>();
+  private final Handler handler =
+      new Handler() {
+        @Override
+        public void publish(LogRecord r) {
+          logged.add(r);
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+      };
+
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("keyring", ".properties");
+    log.addHandler(handler);
+    log.setUseParentHandlers(false);
+  }
+
+  @After
+  public void tearDown() {
+    log.removeHandler(handler);
+    log.setUseParentHandlers(true);
+    file.delete();
+  }
+
+  /** Test a broken file keeps the previous keys, and is logged once per version */
+  @Test
+  public void reloadFailureTest() throws Exception {
+    write("primary = a\nkey.a = " + SignedToken.generateRandomKey() + "\n", 1000);
+    FileKeyRingSource source = new FileKeyRingSource(file, 0);
+    KeyRing ring = source.get();
+
+    write("key.a = " + SignedToken.generateRandomKey() + "\n", 2000);
+    assertSame(ring, source.get());
+    assertSame(ring, source.get());
+    assertEquals(1, logged.size());
+    assertEquals(Level.WARNING, logged.get(0).getLevel());
+
+    write("primary = b\n", 3000);
+    assertSame(ring, source.get());
+    assertEquals(2, logged.size());
+
+    write("primary = b\nkey.b = " + SignedToken.generateRandomKey() + "\n", 4000);
+    assertNotSame(ring, source.get());
+    assertEquals(2, logged.size());
+  }
+
+  private void write(String content, long modified) throws IOException {
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(content.getBytes(StandardCharsets.UTF_8));
+    }
+    file.setLastModified(modified);
+  }
+}
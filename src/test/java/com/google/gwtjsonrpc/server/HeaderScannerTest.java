@@ -0,0 +1,83 @@
+// Copyright (C) 2020 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HeaderScannerTest {
+
+  /** Test media type matching ignores case, whitespace and parameters */
+  @Test
+  public void isMediaTypeTest() {
+    assertTrue(HeaderScanner.isMediaType("application/json", "application/json"));
+    assertTrue(HeaderScanner.isMediaType(" Application/JSON ; charset=utf-8", "application/json"));
+    assertFalse(HeaderScanner.isMediaType("application/jsonx", "application/json"));
+    assertFalse(HeaderScanner.isMediaType("", "application/json"));
+  }
+
+  /** Test single token headers */
+  @Test
+  public void isTest() {
+    assertTrue(HeaderScanner.is(" GZIP ", "gzip"));
+    assertTrue(HeaderScanner.is("  ", ""));
+    assertFalse(HeaderScanner.is("gzip, br", "gzip"));
+  }
+
+  /** Test q-values of list elements */
+  @Test
+  public void qualityTest() {
+    assertEquals(1000, HeaderScanner.quality("gzip, deflate", "gzip"));
+    assertEquals(1000, HeaderScanner.quality("deflate,GZIP", "gzip"));
+    assertEquals(-1, HeaderScanner.quality("deflate, br", "gzip"));
+    assertEquals(0, HeaderScanner.quality("gzip;q=0, deflate", "gzip"));
+    assertEquals(500, HeaderScanner.quality("gzip ; Q = 0.5", "gzip"));
+    assertEquals(125, HeaderScanner.quality("br;q=1.0, gzip;q=0.125", "gzip"));
+    assertEquals(800, HeaderScanner.quality("gzip;q=0.2, gzip;q=0.8", "gzip"));
+    assertEquals(0, HeaderScanner.quality("gzip;q=2", "gzip"));
+    assertEquals(0, HeaderScanner.quality("gzip;q=0.12345", "gzip"));
+  }
+
+  /** Test entity tags are compared weakly, and only in full */
+  @Test
+  public void matchesEntityTagTest() {
+    assertTrue(HeaderScanner.matchesEntityTag("W/\"abc\"", "W/\"abc\""));
+    assertTrue(HeaderScanner.matchesEntityTag("\"abc\"", "W/\"abc\""));
+    assertTrue(HeaderScanner.matchesEntityTag("\"x\", W/\"abc\" ", "\"abc\""));
+    assertTrue(HeaderScanner.matchesEntityTag("\"a,b\",\"abc\"", "W/\"abc\""));
+    assertTrue(HeaderScanner.matchesEntityTag(" * ", "W/\"abc\""));
+    assertFalse(HeaderScanner.matchesEntityTag("\"a,b\"", "\"a\""));
+    assertFalse(HeaderScanner.matchesEntityTag("W/\"ABC\"", "W/\"abc\""));
+    assertFalse(HeaderScanner.matchesEntityTag("\"abc", "W/\"abc\""));
+    assertFalse(HeaderScanner.matchesEntityTag("", "W/\"abc\""));
+  }
+
+  /** Test parameters other than q, including quoted values */
+  @Test
+  public void qualityParametersTest() {
+    assertEquals(
+        900,
+        HeaderScanner.quality(
+            "text/html;level=\"a,b;q=0\";q=0.9, application/json;x;q=0.9", "text/html"));
+    assertEquals(
+        900,
+        HeaderScanner.quality(
+            "text/html;level=\"a,b;q=0\";q=0.9, application/json;x;q=0.9", "application/json"));
+    assertEquals(-1, HeaderScanner.quality("text/html;q=0.9", "q=0.9"));
+  }
+}
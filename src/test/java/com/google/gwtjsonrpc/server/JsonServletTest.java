@@ -0,0 +1,698 @@
+// Copyright (C) 2020 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gwtjsonrpc.common.AllowCrossSiteRequest;
+import com.google.gwtjsonrpc.common.AsyncCallback;
+import com.google.gwtjsonrpc.common.CachePolicy;
+import com.google.gwtjsonrpc.common.Cacheable;
+import com.google.gwtjsonrpc.common.ConditionalGet;
+import com.google.gwtjsonrpc.common.JsonConstants;
+import com.google.gwtjsonrpc.common.Lane;
+import com.google.gwtjsonrpc.common.MaxRequestSize;
+import com.google.gwtjsonrpc.common.RemoteJsonService;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.After;
+import org.junit.Test;
+
+public class JsonServletTest {
+
+  public interface TestService extends RemoteJsonService {
+    void echo(String s, AsyncCallback<String> callback);
+
+    void later(String s, AsyncCallback<String> callback);
+
+    @Cacheable(maxAge = 60, shared = true)
+    void count(AsyncCallback<Integer> callback);
+
+    @AllowCrossSiteRequest
+    @CachePolicy(maxAge = 60)
+    @ConditionalGet
+    void poll(AsyncCallback<String> callback);
+
+    @AllowCrossSiteRequest
+    void status(AsyncCallback<String> callback);
+
+    @MaxRequestSize(1024)
+    void small(String s, AsyncCallback<String> callback);
+
+    @Lane("slow")
+    void queued(String s, AsyncCallback<String> callback);
+  }
+
+  private final Map<String, String> initParameters = new HashMap<>();
+  private TestServlet servlet;
+
+  @After
+  public void tearDown() {
+    if (servlet != null) {
+      servlet.destroy();
+    }
+  }
+
+  /** Test a call is parsed from the body and answered */
+  @Test
+  public void postTest() throws Exception {
+    start(0);
+    Response rsp = post(call(1, "echo", "\"hi\""));
+    assertEquals(HttpServletResponse.SC_OK, rsp.status);
+    assertEquals("hi", result(rsp));
+  }
+
+  /** Test a gzip compressed body is accepted */
+  @Test
+  public void gzipBodyTest() throws Exception {
+    start(0);
+    Request req = new Request(gzip(bytes(call(1, "echo", "\"" + fill(64 * 1024) + "\""))));
+    req.headers.put("Content-Encoding", "gzip");
+    Response rsp = service(req);
+    assertEquals(fill(64 * 1024), result(rsp));
+  }
+
+  /** Test a body claiming to be gzip compressed that is not is a parse error */
+  @Test
+  public void notGzipBodyTest() throws Exception {
+    start(0);
+    Request req = new Request(bytes(call(1, "echo", "\"hi\"")));
+    req.headers.put("Content-Encoding", "gzip");
+    assertEquals("Error parsing request", error(service(req).json()));
+  }
+
+  /** Test the calls of a batch are answered in order, each with its own result or error */
+  @Test
+  public void batchTest() throws Exception {
+    start(0);
+    Response rsp =
+        post(
+            "["
+                + call(1, "echo", "\"a\"")
+                + ",{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"nope\",\"params\":[]}"
+                + ",{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"echo\",\"params\":[1,2]}"
+                + ","
+                + call(4, "echo", "\"b\"")
+                + "]");
+    JsonArray r = rsp.json().getAsJsonArray();
+    assertEquals(4, r.size());
+    assertEquals("a", r.get(0).getAsJsonObject().get("result").getAsString());
+    assertEquals("No such service method", error(r.get(1)));
+    assertEquals("Error parsing request", error(r.get(2)));
+    assertEquals("b", r.get(3).getAsJsonObject().get("result").getAsString());
+    assertEquals(4, r.get(3).getAsJsonObject().get("id").getAsInt());
+  }
+
+  /** Test a call completed after the service method returns is answered then */
+  @Test
+  public void asyncTest() throws Exception {
+    start(0);
+    Request req = new Request(bytes(call(1, "later", "\"x\"")));
+    Response rsp = service(req);
+    assertEquals(0, rsp.body.size());
+    assertFalse(req.completed);
+
+    servlet.pending.poll(10, TimeUnit.SECONDS).onSuccess("done");
+    assertTrue(req.completed);
+    assertEquals("done", result(rsp));
+  }
+
+  /** Test a batch waits for its asynchronous calls */
+  @Test
+  public void asyncBatchTest() throws Exception {
+    start(0);
+    Request req =
+        new Request(bytes("[" + call(1, "later", "\"x\"") + "," + call(2, "echo", "\"y\"") + "]"));
+    Response rsp = service(req);
+    assertEquals(0, rsp.body.size());
+
+    servlet.pending.poll(10, TimeUnit.SECONDS).onSuccess("done");
+    assertTrue(req.completed);
+    JsonArray r = rsp.json().getAsJsonArray();
+    assertEquals("done", r.get(0).getAsJsonObject().get("result").getAsString());
+    assertEquals("y", r.get(1).getAsJsonObject().get("result").getAsString());
+  }
+
+  /** Test a batch timing out fails only its unfinished calls */
+  @Test
+  public void asyncBatchTimeoutTest() throws Exception {
+    start(0);
+    Request req =
+        new Request(
+            bytes(
+                "["
+                    + call(1, "echo", "\"y\"")
+                    + ",{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"echo\"}"
+                    + ","
+                    + call(3, "later", "\"x\"")
+                    + "]"));
+    Response rsp = service(req);
+    assertNotNull(servlet.pending.poll(10, TimeUnit.SECONDS));
+
+    req.listener.onTimeout(null);
+    JsonArray r = rsp.json().getAsJsonArray();
+    assertEquals("y", r.get(0).getAsJsonObject().get("result").getAsString());
+    assertEquals("Error parsing request", error(r.get(1)));
+    assertEquals("Internal Server Error", error(r.get(2)));
+    assertTrue(req.completed);
+  }
+
+  /** Test the result of a cacheable method is reused */
+  @Test
+  public void cacheTest() throws Exception {
+    start(0);
+    assertEquals("1", result(post(call(1, "count", "[]"))));
+    assertEquals("1", result(post(call(2, "count", "[]"))));
+    assertEquals(1, servlet.counted.get());
+  }
+
+  /** Test an unchanged result fetched again with GET is answered with 304, using a weak tag */
+  @Test
+  public void notModifiedTest() throws Exception {
+    start(0);
+    Response first = service(get("poll"));
+    assertEquals(HttpServletResponse.SC_OK, first.status);
+    assertEquals("polled", result(first));
+    String etag = first.headers.get("ETag");
+    assertTrue(etag.startsWith("W/\""));
+    assertEquals("private, max-age=60", first.headers.get("Cache-Control"));
+
+    Request again = get("poll");
+    again.headers.put("If-None-Match", etag);
+    Response second = service(again);
+    assertEquals(HttpServletResponse.SC_NOT_MODIFIED, second.status);
+    assertEquals(0, second.body.size());
+  }
+
+  /** Test methods not tagged for conditional GET are sent in full, without an entity tag */
+  @Test
+  public void unconditionalGetTest() throws Exception {
+    start(0);
+    Request req = get("status");
+    req.headers.put("If-None-Match", "*");
+    Response rsp = service(req);
+    assertEquals(HttpServletResponse.SC_OK, rsp.status);
+    assertEquals("up", result(rsp));
+    assertNull(rsp.headers.get("ETag"));
+  }
+
+  /** Test exhausting the in-flight budget while reading a parameter refuses the call as busy */
+  @Test
+  public void inFlightTest() throws Exception {
+    start(16 * 1024);
+    Request req = new Request(bytes(call(1, "echo", "\"" + fill(64 * 1024) + "\"")));
+    req.chunked = true;
+    Response rsp = service(req);
+    assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, rsp.status);
+    assertEquals("1", rsp.headers.get("Retry-After"));
+    assertEquals(JsonConstants.ERROR_SERVER_BUSY, error(rsp.json()));
+
+    // The bytes read are released, so the next call fits.
+    //
+    assertEquals("ok", result(post(call(2, "echo", "\"ok\""))));
+  }
+
+  /** Test a body over its method's size limit is refused */
+  @Test
+  public void methodLimitTest() throws Exception {
+    start(0);
+    Request req = new Request(bytes(call(1, "small", "\"" + fill(4 * 1024) + "\"")));
+    req.chunked = true;
+    assertEquals("Error parsing request", error(service(req).json()));
+    assertEquals("ok", result(post(call(2, "small", "\"ok\""))));
+  }
+
+  /** Test a call refused by its full lane is answered busy, while an async call holds its slot */
+  @Test
+  public void laneTest() throws Exception {
+    initParameters.put("lane.slow.concurrency", "1");
+    initParameters.put("lane.slow.queue", "0");
+    start(0);
+    Request held = new Request(bytes(call(1, "queued", "\"a\"")));
+    Response first = service(held);
+    ActiveCall pending = servlet.pending.poll(10, TimeUnit.SECONDS);
+    assertNotNull(pending);
+
+    // The async call still holds the lane's only slot after its method returned.
+    //
+    Response refused = post(call(2, "queued", "\"b\""));
+    assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, refused.status);
+    assertEquals("1", refused.headers.get("Retry-After"));
+    assertEquals(JsonConstants.ERROR_SERVER_BUSY, error(refused.json()));
+    assertTrue(servlet.pending.isEmpty());
+
+    // Other methods are not limited by the lane.
+    //
+    assertEquals("ok", result(post(call(3, "echo", "\"ok\""))));
+
+    pending.onSuccess("done");
+    assertTrue(held.completed);
+    assertEquals("done", result(first));
+
+    service(new Request(bytes(call(4, "queued", "\"c\""))));
+    assertNotNull(servlet.pending.poll(10, TimeUnit.SECONDS));
+  }
+
+  /** Test calls are measured only when asked for, and the metrics withdrawn on destroy */
+  @Test
+  public void metricsTest() throws Exception {
+    MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name =
+        new ObjectName("com.google.gwtjsonrpc:type=RpcMetrics,context=\"/\",name=\"test\"");
+    start(0);
+    assertNull(servlet.getMetrics());
+    assertFalse(mbeans.isRegistered(name));
+    servlet.destroy();
+
+    initParameters.put("collectMetrics", "true");
+    start(0);
+    post(call(1, "echo", "\"hi\""));
+    assertTrue(mbeans.isRegistered(name));
+    assertEquals(0, mbeans.getAttribute(name, "InFlightCalls"));
+    assertEquals(1, servlet.getMetrics().getMethods().get(0).getCalls());
+
+    servlet.destroy();
+    servlet = null;
+    assertFalse(mbeans.isRegistered(name));
+  }
+
+  /** Test requests over the adaptive limit are shed unread, and refusals are not sampled */
+  @Test
+  public void adaptiveConcurrencyTest() throws Exception {
+    initParameters.put("adaptiveConcurrency", "true");
+    initParameters.put("adaptiveConcurrency.min", "1");
+    initParameters.put("adaptiveConcurrency.initial", "2");
+    initParameters.put("adaptiveConcurrency.max", "2");
+    initParameters.put("lane.slow.concurrency", "1");
+    initParameters.put("lane.slow.queue", "0");
+    start(0);
+    AdaptiveLimiter limiter = servlet.limiter;
+
+    Request a = new Request(bytes(call(1, "queued", "\"a\"")));
+    Response first = service(a);
+    ActiveCall pendingA = servlet.pending.poll(10, TimeUnit.SECONDS);
+
+    // Admitted under the limit, but refused by its full lane.
+    //
+    Response lane = post(call(2, "queued", "\"b\""));
+    assertEquals(JsonConstants.ERROR_SERVER_BUSY, error(lane.json()));
+    assertEquals(1, limiter.getInFlight());
+
+    Request c = new Request(bytes(call(3, "later", "\"c\"")));
+    Response second = service(c);
+    ActiveCall pendingC = servlet.pending.poll(10, TimeUnit.SECONDS);
+    assertEquals(2, limiter.getInFlight());
+
+    Request shed = new Request(bytes(call(4, "echo", "\"d\"")));
+    Response refused = service(shed);
+    assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, refused.status);
+    assertEquals("1", refused.headers.get("Retry-After"));
+    assertEquals(JsonConstants.ERROR_SERVER_BUSY, error(refused.json()));
+    assertFalse(shed.bodyRead);
+    assertEquals(1, limiter.getRejected());
+    assertEquals(0, limiter.getSamples());
+
+    pendingA.onSuccess("a");
+    pendingC.onSuccess("c");
+    assertEquals("a", result(first));
+    assertEquals("c", result(second));
+    assertEquals(0, limiter.getInFlight());
+    assertEquals(2, limiter.getSamples());
+
+    // Calls failing before reaching a method are not sampled either.
+    //
+    assertEquals("No such service method", error(post(call(5, "nope", "[]")).json()));
+    assertEquals(2, limiter.getSamples());
+    assertEquals("ok", result(post(call(6, "echo", "\"ok\""))));
+    assertEquals(3, limiter.getSamples());
+  }
+
+  private void start(long maxInFlight) throws Exception {
+    servlet = new TestServlet(maxInFlight);
+    servlet.init(
+        proxy(
+            ServletConfig.class,
+            new InvocationHandler() {
+              @Override
+              public Object invoke(Object proxy, Method m, Object[] args) {
+                switch (m.getName()) {
+                  case "getServletName":
+                    return "test";
+                  case "getServletContext":
+                    return context();
+                  case "getInitParameter":
+                    return initParameters.get(args[0]);
+                  default:
+                    return null;
+                }
+              }
+            }));
+  }
+
+  private Response post(String body) throws IOException {
+    return service(new Request(bytes(body)));
+  }
+
+  private Response service(Request req) throws IOException {
+    Response rsp = new Response();
+    servlet.service(req.proxy, rsp.proxy);
+    return rsp;
+  }
+
+  private static Request get(String method) {
+    Request req = new Request(null);
+    req.method = "GET";
+    req.parameters.put("jsonrpc", "2.0");
+    req.parameters.put("id", "1");
+    req.parameters.put("method", method);
+    req.parameters.put("params", Base64.encodeBase64String(bytes("[]")));
+    return req;
+  }
+
+  private static String call(int id, String method, String params) {
+    if (!params.startsWith("[")) {
+      params = "[" + params + "]";
+    }
+    return "{\"jsonrpc\":\"2.0\",\"id\":"
+        + id
+        + ",\"method\":\""
+        + method
+        + "\",\"params\":"
+        + params
+        + "}";
+  }
+
+  private static String result(Response rsp) throws IOException {
+    return rsp.json().getAsJsonObject().get("result").getAsString();
+  }
+
+  private static String error(JsonElement r) {
+    return r.getAsJsonObject().get("error").getAsJsonObject().get("message").getAsString();
+  }
+
+  private static String fill(int n) {
+    return CallDeserializerTest.fill(n);
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    try (GZIPOutputStream gz = new GZIPOutputStream(buf)) {
+      gz.write(data);
+    }
+    return buf.toByteArray();
+  }
+
+  private static ServletContext context() {
+    return proxy(
+        ServletContext.class,
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            return m.getName().equals("getContextPath") ? "" : null;
+          }
+        });
+  }
+
+  private static <T> T proxy(Class<T> type, InvocationHandler h) {
+    return type.cast(
+        Proxy.newProxyInstance(JsonServletTest.class.getClassLoader(), new Class<?>[] {type}, h));
+  }
+
+  @SuppressWarnings("serial")
+  private static class TestServlet extends JsonServlet<ActiveCall> implements TestService {
+    final BlockingQueue<ActiveCall> pending = new LinkedBlockingQueue<>();
+    final AtomicInteger counted = new AtomicInteger();
+    private final long maxInFlight;
+    AdaptiveLimiter limiter;
+
+    TestServlet(long maxInFlight) {
+      this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    protected boolean xsrfValidate(ActiveCall call) {
+      return true;
+    }
+
+    @Override
+    protected long maxInFlightRequestBytes() {
+      return maxInFlight;
+    }
+
+    @Override
+    protected AdaptiveLimiter createConcurrencyLimiter() throws ServletException {
+      limiter = super.createConcurrencyLimiter();
+      return limiter;
+    }
+
+    @Override
+    public void echo(String s, AsyncCallback<String> callback) {
+      callback.onSuccess(s);
+    }
+
+    @Override
+    public void later(String s, AsyncCallback<String> callback) {
+      ActiveCall call = getCurrentCall();
+      call.startAsync();
+      pending.add(call);
+    }
+
+    @Override
+    public void count(AsyncCallback<Integer> callback) {
+      callback.onSuccess(counted.incrementAndGet());
+    }
+
+    @Override
+    public void poll(AsyncCallback<String> callback) {
+      callback.onSuccess("polled");
+    }
+
+    @Override
+    public void status(AsyncCallback<String> callback) {
+      callback.onSuccess("up");
+    }
+
+    @Override
+    public void small(String s, AsyncCallback<String> callback) {
+      callback.onSuccess(s);
+    }
+
+    @Override
+    public void queued(String s, AsyncCallback<String> callback) {
+      later(s, callback);
+    }
+  }
+
+  private static class Request implements InvocationHandler {
+    final HttpServletRequest proxy = proxy(HttpServletRequest.class, this);
+    final Map<String, String> headers = new HashMap<>();
+    final Map<String, String> parameters = new HashMap<>();
+    final byte[] body;
+    String method = "POST";
+    boolean chunked;
+    boolean bodyRead;
+    volatile AsyncListener listener;
+    volatile boolean completed;
+
+    Request(byte[] body) {
+      this.body = body;
+      headers.put("Accept", JsonConstants.JSON_TYPE);
+      headers.put("Content-Type", JsonConstants.JSONRPC20_REQ_CT);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method m, Object[] args) {
+      switch (m.getName()) {
+        case "getMethod":
+          return method;
+        case "getHeader":
+          return headers.get(args[0]);
+        case "getParameter":
+          return parameters.get(args[0]);
+        case "getContentType":
+          return headers.get("Content-Type");
+        case "getCharacterEncoding":
+          return JsonConstants.JSON_ENC;
+        case "getContentLengthLong":
+          return chunked || body == null ? -1L : (long) body.length;
+        case "getInputStream":
+          bodyRead = true;
+          return new BodyStream(new ByteArrayInputStream(body));
+        case "isAsyncSupported":
+          return true;
+        case "startAsync":
+          return asyncContext();
+        case "getRemoteUser":
+        case "getCookies":
+          return null;
+        default:
+          throw new UnsupportedOperationException(m.getName());
+      }
+    }
+
+    private AsyncContext asyncContext() {
+      return proxy(
+          AsyncContext.class,
+          new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method m, Object[] args) {
+              switch (m.getName()) {
+                case "addListener":
+                  listener = (AsyncListener) args[0];
+                  return null;
+                case "complete":
+                  completed = true;
+                  return null;
+                default:
+                  throw new UnsupportedOperationException(m.getName());
+              }
+            }
+          });
+    }
+  }
+
+  private static class Response implements InvocationHandler {
+    final HttpServletResponse proxy = proxy(HttpServletResponse.class, this);
+    final Map<String, String> headers = new HashMap<>();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    int status = HttpServletResponse.SC_OK;
+
+    JsonElement json() throws IOException {
+      InputStream in = new ByteArrayInputStream(body.toByteArray());
+      if ("gzip".equals(headers.get("Content-Encoding"))) {
+        in = new GZIPInputStream(in);
+      }
+      ByteArrayOutputStream r = new ByteArrayOutputStream();
+      byte[] b = new byte[4096];
+      int n;
+      while ((n = in.read(b)) > 0) {
+        r.write(b, 0, n);
+      }
+      return new JsonParser().parse(new String(r.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method m, Object[] args) {
+      switch (m.getName()) {
+        case "setStatus":
+          status = (Integer) args[0];
+          return null;
+        case "getStatus":
+          return status;
+        case "setHeader":
+        case "addHeader":
+          headers.put((String) args[0], (String) args[1]);
+          return null;
+        case "setContentType":
+        case "setContentLength":
+        case "addCookie":
+          return null;
+        case "getOutputStream":
+          return new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+              body.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+              body.write(b, off, len);
+            }
+
+            @Override
+            public boolean isReady() {
+              return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {}
+          };
+        default:
+          throw new UnsupportedOperationException(m.getName());
+      }
+    }
+  }
+
+  private static class BodyStream extends ServletInputStream {
+    private final InputStream in;
+
+    BodyStream(InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return in.read(b, off, len);
+    }
+
+    @Override
+    public boolean isFinished() {
+      return false;
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setReadListener(ReadListener listener) {}
+  }
+}
@@ -0,0 +1,67 @@
+// Copyright (C) 2020 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  /** Test durations land in the first bucket whose bound is not smaller */
+  @Test
+  public void recordTest() {
+    final LatencyHistogram h = new LatencyHistogram();
+    h.record(0);
+    h.record(TimeUnit.MICROSECONDS.toNanos(10));
+    h.record(TimeUnit.MICROSECONDS.toNanos(10) + 1);
+    h.record(TimeUnit.SECONDS.toNanos(3600));
+
+    final long[] counts = h.counts();
+    assertEquals(LatencyHistogram.BOUNDS.length + 1, counts.length);
+    assertEquals(2, counts[0]);
+    assertEquals(1, counts[1]);
+    assertEquals(1, counts[counts.length - 1]);
+    assertEquals(TimeUnit.MICROSECONDS.toNanos(20) + 1 + TimeUnit.SECONDS.toNanos(3600), h.sum());
+  }
+
+  /** Test bounds follow a 1-2-5 series */
+  @Test
+  public void boundsTest() {
+    assertEquals(TimeUnit.MICROSECONDS.toNanos(50), LatencyHistogram.BOUNDS[2]);
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(1), LatencyHistogram.BOUNDS[6]);
+    assertEquals(
+        TimeUnit.SECONDS.toNanos(50), LatencyHistogram.BOUNDS[LatencyHistogram.BOUNDS.length - 1]);
+  }
+
+  /** Test quantiles are estimated by bucket bounds */
+  @Test
+  public void quantileTest() {
+    final LatencyHistogram h = new LatencyHistogram();
+    assertEquals(0, LatencyHistogram.quantile(h.counts(), 0.5));
+
+    for (int i = 0; i < 99; i++) {
+      h.record(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    h.record(TimeUnit.MILLISECONDS.toNanos(150));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(1), LatencyHistogram.quantile(h.counts(), 0.5));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(1), LatencyHistogram.quantile(h.counts(), 0.99));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(200), LatencyHistogram.quantile(h.counts(), 1));
+
+    h.record(TimeUnit.SECONDS.toNanos(100));
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.quantile(h.counts(), 1));
+  }
+}
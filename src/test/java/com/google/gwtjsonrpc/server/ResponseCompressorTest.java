@@ -0,0 +1,125 @@
+// Copyright (C) 2020 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+
+public class ResponseCompressorTest {
+  private final ResponseCompressor compressor = ResponseCompressor.getDefault();
+
+  private static byte[] json(int items) {
+    StringBuilder b = new StringBuilder("[");
+    for (int i = 0; i < items; i++) {
+      b.append(i > 0 ? "," : "").append("{\"name\":\"item-").append(i).append("\"}");
+    }
+    return b.append(']').toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private byte[] compress(byte[] data) throws Exception {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    OutputStream gz = compressor.open(buf, null);
+    gz.write(data, 0, data.length / 2);
+    gz.write(data, data.length / 2, data.length - data.length / 2);
+    gz.close();
+    return buf.toByteArray();
+  }
+
+  private static byte[] decompress(byte[] data) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+      byte[] b = new byte[4096];
+      int n;
+      while ((n = in.read(b)) > 0) {
+        out.write(b, 0, n);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /** Test compressed output is a valid gzip stream, also when the pooled state is reused */
+  @Test
+  public void roundTripTest() throws Exception {
+    for (int items : new int[] {1, 100, 10000, 100}) {
+      byte[] data = json(items);
+      assertArrayEquals(data, decompress(compress(data)));
+    }
+  }
+
+  /** Test small responses are not compressed */
+  @Test
+  public void thresholdTest() throws Exception {
+    byte[] data = json(100);
+    assertTrue(compressor.shouldCompress(data, data.length, data.length, null));
+    assertFalse(compressor.shouldCompress(data, 10, ResponseCompressor.DEFAULT_THRESHOLD, null));
+  }
+
+  /** Test payloads that do not shrink are not compressed */
+  @Test
+  public void incompressibleTest() throws Exception {
+    byte[] data = new byte[4096];
+    new Random(1).nextBytes(data);
+    assertFalse(compressor.shouldCompress(data, data.length, data.length, null));
+  }
+
+  /** Test deflaters that do not fit in the pool are ended, and clearing ends the pooled ones */
+  @Test
+  public void releaseTest() throws Exception {
+    ResponseCompressor c = new ResponseCompressor(256, Deflater.DEFAULT_COMPRESSION);
+    byte[] data = json(100);
+    List<OutputStream> open = new ArrayList<>();
+    for (int i = 0; i < 16; i++) {
+      OutputStream gz = c.open(new ByteArrayOutputStream(), null);
+      gz.write(data, 0, data.length);
+      open.add(gz);
+    }
+    assertEquals(16, c.deflaters());
+
+    ResponseCompressor.abort(open.get(0));
+    for (OutputStream gz : open) {
+      gz.close();
+    }
+    assertTrue(c.deflaters() > 0);
+    assertTrue(c.deflaters() <= 4);
+    assertEquals(0, c.active());
+
+    OutputStream gz = c.open(new ByteArrayOutputStream(), null);
+    c.clear();
+    assertEquals(1, c.deflaters());
+    gz.close();
+    c.clear();
+    assertEquals(0, c.deflaters());
+
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    gz = c.open(buf, null);
+    gz.write(data, 0, data.length);
+    gz.close();
+    assertArrayEquals(data, decompress(buf.toByteArray()));
+  }
+}
@@ -0,0 +1,161 @@
+// Copyright (C) 2020 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Test;
+
+public class ResponseOutputStreamTest {
+
+  /** Test a streamed response that fails to write releases its compressor */
+  @Test
+  public void abortTest() throws Exception {
+    ResponseCompressor compressor = new ResponseCompressor(256, Deflater.BEST_COMPRESSION);
+
+    ResponseOutputStream out =
+        new ResponseOutputStream(null, response(new FailingOutputStream(4096)), compressor, 1024);
+    try {
+      for (int i = 0; i < 100000; i++) {
+        byte[] item = ("{\"name\":\"item-" + i + "\"},").getBytes(StandardCharsets.UTF_8);
+        out.write(item, 0, item.length);
+      }
+      fail("expected IOException");
+    } catch (IOException e) {
+      assertEquals(1, compressor.active());
+    } finally {
+      out.abort();
+    }
+    assertEquals(0, compressor.active());
+    assertEquals(Deflater.BEST_COMPRESSION, compressor.currentLevel());
+  }
+
+  /** Test responses sharing this thread's buffer do not see each other's data */
+  @Test
+  public void reuseTest() throws Exception {
+    assertEquals("[\"first response\"]", write("[\"first response\"]"));
+    assertEquals("[1]", write("[1]"));
+
+    StringBuilder large = new StringBuilder("[");
+    for (int i = 0; i < 1000; i++) {
+      large.append(i > 0 ? "," : "").append(i);
+    }
+    String json = large.append(']').toString();
+    assertEquals(json, write(json));
+    assertEquals("[2]", write("[2]"));
+  }
+
+  /** Test writing to a closed response fails with an IOException */
+  @Test
+  public void writeAfterCloseTest() throws Exception {
+    ResponseOutputStream out =
+        new ResponseOutputStream(null, response(new CapturingOutputStream()), null, 1024);
+    out.write('1');
+    out.close();
+    try {
+      out.write('2');
+      fail("expected IOException");
+    } catch (IOException e) {
+      assertEquals("Response already closed", e.getMessage());
+    }
+    try {
+      out.write(new byte[] {'3'}, 0, 1);
+      fail("expected IOException");
+    } catch (IOException e) {
+      assertEquals("Response already closed", e.getMessage());
+    }
+  }
+
+  private static String write(String json) throws IOException {
+    CapturingOutputStream capture = new CapturingOutputStream();
+    ResponseOutputStream out = new ResponseOutputStream(null, response(capture), null, 1024);
+    byte[] data = json.getBytes(StandardCharsets.UTF_8);
+    out.write(data, 0, data.length);
+    out.close();
+    return new String(capture.data.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  static HttpServletResponse response(final ServletOutputStream out) {
+    return (HttpServletResponse)
+        Proxy.newProxyInstance(
+            ResponseOutputStreamTest.class.getClassLoader(),
+            new Class<?>[] {HttpServletResponse.class},
+            new InvocationHandler() {
+              @Override
+              public Object invoke(Object proxy, Method m, Object[] args) {
+                switch (m.getName()) {
+                  case "getOutputStream":
+                    return out;
+                  case "getStatus":
+                    return HttpServletResponse.SC_OK;
+                  default:
+                    return null;
+                }
+              }
+            });
+  }
+
+  private static class CapturingOutputStream extends ServletOutputStream {
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+    @Override
+    public void write(int b) {
+      data.write(b);
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener listener) {}
+  }
+
+  /** Stream failing once a number of bytes have been written, as if the client went away. */
+  private static class FailingOutputStream extends ServletOutputStream {
+    private int room;
+
+    FailingOutputStream(int room) {
+      this.room = room;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (--room < 0) {
+        throw new IOException("Connection reset");
+      }
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener listener) {}
+  }
+}
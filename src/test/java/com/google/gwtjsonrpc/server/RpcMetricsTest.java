@@ -0,0 +1,231 @@
+// Copyright (C) 2020 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import com.google.gwtjsonrpc.server.RpcMetricsMXBean.SlowCall;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Test;
+
+public class RpcMetricsTest {
+
+  /** Test a slow call keeps only the start of its parameters, and the size of its request */
+  @Test
+  public void slowCallParamsTest() throws Exception {
+    RpcMetrics metrics = metrics();
+    metrics.captureSlowCalls(0, 10, TimeUnit.MINUTES.toNanos(1), 8, new Gson());
+    finish(metrics, new Object[] {CallDeserializerTest.fill(64 * 1024), 1}, 65550);
+    finish(metrics, new Object[] {"a"}, 20);
+
+    List<SlowCall> calls = metrics.getSlowCalls();
+    assertEquals(2, calls.size());
+    SlowCall large = calls.get(0).getRequestBytes() == 65550 ? calls.get(0) : calls.get(1);
+    SlowCall small = calls.get(0) == large ? calls.get(1) : calls.get(0);
+    assertEquals("[\"xxxxxx", large.getParams());
+    assertEquals("[\"a\"]", small.getParams());
+    assertEquals(20, small.getRequestBytes());
+  }
+
+  /** Test the parameters of a slow call are not described unless asked for */
+  @Test
+  public void slowCallNoParamsTest() throws Exception {
+    RpcMetrics metrics = metrics();
+    metrics.captureSlowCalls(0, 10, TimeUnit.MINUTES.toNanos(1), 0, new Gson());
+    finish(metrics, new Object[] {"a"}, 20);
+
+    SlowCall call = metrics.getSlowCalls().get(0);
+    assertNull(call.getParams());
+    assertEquals(20, call.getRequestBytes());
+  }
+
+  /** Test the text exposition format, with label values escaped */
+  @Test
+  public void writeTextTest() throws Exception {
+    RpcMetrics metrics =
+        new RpcMetrics(
+            "a\"b\\c\nd",
+            Collections.<String>emptyList(),
+            null,
+            null,
+            Collections.singletonMap("x\"y", new Bulkhead(1, 0, 0)),
+            null);
+    finish(metrics, null, 20);
+
+    StringBuilder out = new StringBuilder();
+    RpcMetrics.writeText(Collections.singletonList(metrics), out);
+    List<String> lines = Arrays.asList(out.toString().split("\n"));
+    String servlet = "servlet=\"a\\\"b\\\\c\\nd\"";
+    assertTrue(lines.contains("# TYPE gwtjsonrpc_calls_total counter"));
+    assertTrue(lines.contains("# HELP gwtjsonrpc_calls_total Calls completed."));
+    assertTrue(lines.contains("gwtjsonrpc_in_flight_calls{" + servlet + "} 0"));
+    assertTrue(lines.contains("gwtjsonrpc_lane_active_calls{" + servlet + ",lane=\"x\\\"y\"} 0"));
+    assertTrue(lines.contains("gwtjsonrpc_calls_total{" + servlet + ",method=\"(unknown)\"} 1"));
+    assertTrue(
+        lines.contains("gwtjsonrpc_request_bytes_total{" + servlet + ",method=\"(unknown)\"} 20"));
+    assertTrue(
+        lines.contains(
+            "gwtjsonrpc_call_seconds_bucket{" + servlet + ",method=\"(unknown)\",le=\"+Inf\"} 1"));
+    assertTrue(
+        lines.contains("gwtjsonrpc_call_seconds_count{" + servlet + ",method=\"(unknown)\"} 1"));
+    for (String line : lines) {
+      assertFalse(line, line.contains("(batch)"));
+    }
+  }
+
+  /** Test registered metrics are published through JMX and the metrics servlet until withdrawn */
+  @Test
+  public void registerTest() throws Exception {
+    ServletContext ctx = context("/app");
+    RpcMetrics metrics = metrics();
+    ObjectName name =
+        new ObjectName("com.google.gwtjsonrpc:type=RpcMetrics,context=\"/app\",name=\"test\"");
+    metrics.register(ctx);
+    try {
+      assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+      assertEquals(Collections.singletonList(metrics), new ArrayList<>(RpcMetrics.registered(ctx)));
+      finish(metrics, null, 20);
+
+      String text = serve(ctx);
+      assertTrue(
+          text, text.contains("gwtjsonrpc_calls_total{servlet=\"test\",method=\"(unknown)\"} 1\n"));
+    } finally {
+      metrics.unregister(ctx);
+    }
+    assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    assertTrue(RpcMetrics.registered(ctx).isEmpty());
+    assertFalse(serve(ctx).contains("servlet=\"test\""));
+  }
+
+  /** @return text served by a metrics servlet in the context. */
+  private static String serve(final ServletContext ctx) throws Exception {
+    MetricsServlet servlet = new MetricsServlet();
+    servlet.init(
+        proxy(
+            ServletConfig.class,
+            new InvocationHandler() {
+              @Override
+              public Object invoke(Object proxy, Method m, Object[] args) {
+                return m.getName().equals("getServletContext") ? ctx : null;
+              }
+            }));
+
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final Map<String, String> headers = new HashMap<>();
+    HttpServletResponse rsp =
+        proxy(
+            HttpServletResponse.class,
+            new InvocationHandler() {
+              @Override
+              public Object invoke(Object proxy, Method m, Object[] args) {
+                switch (m.getName()) {
+                  case "setContentType":
+                    headers.put("Content-Type", (String) args[0]);
+                    return null;
+                  case "setHeader":
+                    headers.put((String) args[0], (String) args[1]);
+                    return null;
+                  case "getOutputStream":
+                    return new ServletOutputStream() {
+                      @Override
+                      public void write(int b) {
+                        body.write(b);
+                      }
+
+                      @Override
+                      public boolean isReady() {
+                        return true;
+                      }
+
+                      @Override
+                      public void setWriteListener(WriteListener listener) {}
+                    };
+                  default:
+                    throw new UnsupportedOperationException(m.getName());
+                }
+              }
+            });
+    servlet.doGet(null, rsp);
+    assertEquals(MetricsServlet.CONTENT_TYPE, headers.get("Content-Type"));
+    return new String(body.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static ServletContext context(final String path) {
+    final Map<String, Object> attributes = new HashMap<>();
+    return proxy(
+        ServletContext.class,
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            switch (m.getName()) {
+              case "getContextPath":
+                return path;
+              case "getAttribute":
+                return attributes.get(args[0]);
+              case "setAttribute":
+                attributes.put((String) args[0], args[1]);
+                return null;
+              default:
+                return null;
+            }
+          }
+        });
+  }
+
+  private static <T> T proxy(Class<T> type, InvocationHandler h) {
+    return type.cast(
+        Proxy.newProxyInstance(RpcMetricsTest.class.getClassLoader(), new Class<?>[] {type}, h));
+  }
+
+  private static RpcMetrics metrics() {
+    return new RpcMetrics(
+        "test",
+        Collections.<String>emptyList(),
+        null,
+        null,
+        Collections.<String, Bulkhead>emptyMap(),
+        null);
+  }
+
+  private static void finish(RpcMetrics metrics, Object[] params, long requestBytes) {
+    ActiveCall call = new ActiveCall(null, null);
+    call.stats = metrics.start();
+    call.stats.requestBytes = requestBytes;
+    call.params = params;
+    metrics.finish(call);
+  }
+}
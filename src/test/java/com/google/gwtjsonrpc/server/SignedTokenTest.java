@@ -16,8 +16,13 @@ package com.google.gwtjsonrpc.server;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 import com.google.gwtjsonrpc.common.CheckTokenException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.codec.binary.Base64;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -84,4 +89,130 @@ public class SignedTokenTest {
     String token = signedToken.newToken(TEXT);
     signedToken.checkToken(token, FORGED_TEXT);
   }
+
+  /** Test tokens keep the URL safe BASE64 encoding of older releases */
+  @Test
+  public void tokenEncodingTest() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      String token = signedToken.newToken(TEXT + i);
+      String sig = token.substring(0, token.indexOf('$'));
+      byte[] raw = new Base64(0, null, true).decode(sig.getBytes("US-ASCII"));
+      assertEquals(sig, Base64.encodeBase64URLSafeString(raw));
+
+      String standard = Base64.encodeBase64String(raw).replace("=", "").trim();
+      assertEquals(
+          TEXT + i,
+          signedToken.checkToken(standard + token.substring(sig.length()), null).getData());
+    }
+  }
+
+  /** Test check token on a different thread from the one which signed it */
+  @Test
+  public void checkTokenOtherThreadTest() throws Exception {
+    final String token = signedToken.newToken(TEXT);
+    final AtomicReference<Object> r = new AtomicReference<>();
+    Thread t =
+        new Thread() {
+          @Override
+          public void run() {
+            try {
+              r.set(signedToken.checkToken(token, TEXT).getData());
+            } catch (Exception e) {
+              r.set(e);
+            }
+          }
+        };
+    t.start();
+    t.join();
+    assertEquals(TEXT, r.get());
+  }
+
+  /** Test tokens signed and checked by many threads at once, sharing the pooled state */
+  @Test
+  public void concurrentTest() throws Exception {
+    final AtomicReference<Object> failure = new AtomicReference<>();
+    Thread[] threads = new Thread[16];
+    for (int i = 0; i < threads.length; i++) {
+      final String text = TEXT + i;
+      threads[i] =
+          new Thread() {
+            @Override
+            public void run() {
+              try {
+                for (int n = 0; n < 500; n++) {
+                  String token = signedToken.newToken(text);
+                  if (!text.equals(signedToken.checkToken(token, text).getData())) {
+                    failure.set(token);
+                  }
+                }
+              } catch (Exception e) {
+                failure.set(e);
+              }
+            }
+          };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertNull(failure.get());
+  }
+
+  /** Test check token with a cache of verified tokens */
+  @Test
+  public void checkTokenCachedTest() throws Exception {
+    SignedToken cached = new SignedToken(maxAge, SignedToken.generateRandomKey(), 8);
+    String token = cached.newToken(TEXT);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(TEXT, cached.checkToken(token, TEXT).getData());
+      assertEquals(TEXT, cached.checkToken(token, null).getData());
+    }
+  }
+
+  /** Test check token with a cache: a verified token is still checked against the text */
+  @Test(expected = CheckTokenException.class)
+  public void checkTokenCachedForgedTextTest() throws Exception {
+    SignedToken cached = new SignedToken(maxAge, SignedToken.generateRandomKey(), 8);
+    String token = cached.newToken(TEXT);
+    cached.checkToken(token, TEXT);
+    cached.checkToken(token, FORGED_TEXT);
+  }
+
+  /** Test tokens signed with a shared key ring are accepted across key rotation */
+  @Test
+  public void checkTokenKeyRingTest() throws Exception {
+    Map<String, String> keys = new HashMap<>();
+    keys.put("a", SignedToken.generateRandomKey());
+    keys.put("b", SignedToken.generateRandomKey());
+    SignedToken nodeA = new SignedToken(maxAge, ring("a", keys), 0);
+    SignedToken nodeB = new SignedToken(maxAge, ring("b", keys), 8);
+
+    String fromA = nodeA.newToken(TEXT);
+    String fromB = nodeB.newToken(TEXT);
+    assertEquals(TEXT, nodeB.checkToken(fromA, TEXT).getData());
+    assertEquals(TEXT, nodeA.checkToken(fromB, TEXT).getData());
+    assertEquals(TEXT, nodeA.checkToken(fromA, TEXT).getData());
+  }
+
+  /** Test check token: the key of a token was removed from the key ring */
+  @Test(expected = CheckTokenException.class)
+  public void checkTokenKeyRingUnknownKeyTest() throws Exception {
+    Map<String, String> keys = new HashMap<>();
+    keys.put("a", SignedToken.generateRandomKey());
+    String token = new SignedToken(maxAge, ring("a", keys), 0).newToken(TEXT);
+
+    keys.put("b", SignedToken.generateRandomKey());
+    keys.remove("a");
+    new SignedToken(maxAge, ring("b", keys), 0).checkToken(token, TEXT);
+  }
+
+  private static KeyRingSource ring(String primary, Map<String, String> keys) throws Exception {
+    final KeyRing r = new KeyRing(primary, keys);
+    return new KeyRingSource() {
+      @Override
+      public KeyRing get() {
+        return r;
+      }
+    };
+  }
 }
@@ -0,0 +1,68 @@
+// Copyright (C) 2020 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gwtjsonrpc.server.RpcMetricsMXBean.SlowCall;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class SlowCallLogTest {
+  private static SlowCall call(final long nanos, final long recorded) {
+    return new SlowCall("m", null, 0, nanos, new long[5], 0, 0, 0, null, recorded);
+  }
+
+  private static List<Long> durations(final SlowCallLog log, final long now) {
+    final List<SlowCall> calls = new ArrayList<>();
+    log.collect(calls, now);
+    final List<Long> r = new ArrayList<>();
+    for (final SlowCall c : calls) {
+      r.add(c.nanos);
+    }
+    r.sort(null);
+    return r;
+  }
+
+  /** Test the slowest calls are kept */
+  @Test
+  public void keepsSlowestTest() {
+    final SlowCallLog log = new SlowCallLog(2, 1000);
+    assertTrue(log.wouldKeep(1, 0));
+    log.offer(call(10, 0), 0);
+    log.offer(call(30, 0), 0);
+    assertFalse(log.wouldKeep(5, 0));
+    log.offer(call(5, 0), 0);
+    log.offer(call(20, 0), 0);
+    assertEquals("[20, 30]", durations(log, 0).toString());
+  }
+
+  /** Test calls leave the log once outside the window */
+  @Test
+  public void windowTest() {
+    final SlowCallLog log = new SlowCallLog(2, 1000);
+    log.offer(call(30, 0), 0);
+    log.offer(call(20, 500), 500);
+    assertEquals("[20, 30]", durations(log, 1000).toString());
+    assertEquals("[20]", durations(log, 1001).toString());
+
+    assertTrue(log.wouldKeep(1, 1001));
+    log.offer(call(1, 1001), 1001);
+    assertEquals("[1, 20]", durations(log, 1001).toString());
+  }
+}
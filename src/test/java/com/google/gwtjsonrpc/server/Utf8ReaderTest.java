@@ -0,0 +1,115 @@
+// Copyright (C) 2020 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gwtjsonrpc.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.junit.Test;
+
+public class Utf8ReaderTest {
+
+  /** Test decoding of every sequence length, with the input arriving one byte at a time */
+  @Test
+  public void decodeTest() throws Exception {
+    StringBuilder b = new StringBuilder();
+    Random r = new Random(42);
+    for (int i = 0; i < 20000; i++) {
+      int cp;
+      do {
+        cp = r.nextInt(4) == 0 ? r.nextInt(0x110000) : r.nextInt(0x80);
+      } while (Character.MIN_SURROGATE <= cp && cp <= Character.MAX_SURROGATE);
+      b.appendCodePoint(cp);
+    }
+    String text = b.toString();
+    byte[] data = text.getBytes(StandardCharsets.UTF_8);
+
+    assertEquals(text, readAll(Utf8Reader.open(new ByteArrayInputStream(data)), 1000));
+    assertEquals(text, readAll(Utf8Reader.open(trickle(data)), 1));
+  }
+
+  /** Test overlong forms are rejected */
+  @Test(expected = MalformedInputException.class)
+  public void overlongTest() throws Exception {
+    decode(0x7b, 0xc0, 0x80, 0x7d);
+  }
+
+  /** Test overlong three byte forms are rejected */
+  @Test(expected = MalformedInputException.class)
+  public void overlongThreeByteTest() throws Exception {
+    decode(0xe0, 0x9f, 0xbf);
+  }
+
+  /** Test encoded surrogates are rejected */
+  @Test(expected = MalformedInputException.class)
+  public void surrogateTest() throws Exception {
+    decode(0xed, 0xa0, 0x80);
+  }
+
+  /** Test code points beyond U+10FFFF are rejected */
+  @Test(expected = MalformedInputException.class)
+  public void beyondUnicodeTest() throws Exception {
+    decode(0xf4, 0x90, 0x80, 0x80);
+  }
+
+  /** Test a missing continuation byte is rejected */
+  @Test(expected = MalformedInputException.class)
+  public void missingContinuationTest() throws Exception {
+    decode(0xe2, 0x82, 0x41);
+  }
+
+  /** Test a sequence truncated by the end of the stream is rejected */
+  @Test(expected = MalformedInputException.class)
+  public void truncatedTest() throws Exception {
+    decode(0x41, 0xf0, 0x9f, 0x98);
+  }
+
+  private static String decode(int... bytes) throws IOException {
+    byte[] data = new byte[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      data[i] = (byte) bytes[i];
+    }
+    return readAll(Utf8Reader.open(new ByteArrayInputStream(data)), 16);
+  }
+
+  private static String readAll(Reader in, int chunk) throws IOException {
+    StringBuilder r = new StringBuilder();
+    char[] buf = new char[chunk];
+    try {
+      int n;
+      while ((n = in.read(buf, 0, buf.length)) >= 0) {
+        r.append(buf, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return r.toString();
+  }
+
+  private static InputStream trickle(final byte[] data) {
+    return new ByteArrayInputStream(data) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, 1));
+      }
+    };
+  }
+}